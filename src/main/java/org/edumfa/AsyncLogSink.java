@@ -0,0 +1,216 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Passes log messages to the logger of the plugin on a background thread, so that slow log appenders do not delay the
+ * requests. The messages are kept in a bounded lock-free ring buffer. If the buffer is full, new messages are discarded and
+ * counted instead of blocking the thread that logs them. After the sink is closed, messages are written on the thread that
+ * logs them and counted as well.
+ */
+class AsyncLogSink
+{
+    private final Runnable[] buffer;
+    // The sequence of a slot tells whether it can be written (== position) or read (== position + 1)
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // Only accessed by the log thread
+    private long head = 0;
+    private final EMMetrics metrics;
+    private final Thread thread;
+    private volatile boolean waiting = false;
+    private volatile boolean closed = false;
+    // Set by the log thread before it writes the last messages and ends
+    private volatile boolean stopped = false;
+
+    /**
+     * @param capacity number of messages that can be buffered, rounded up to the next power of two
+     * @param metrics  metrics to count the discarded messages
+     */
+    AsyncLogSink(int capacity, EMMetrics metrics)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.buffer = new Runnable[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.metrics = metrics;
+        this.thread = new Thread(this::run, "edumfa-log");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Add a log task to the buffer. The task is executed on the log thread, or on the calling thread if the sink is closed.
+     *
+     * @param task writes the message to the logger
+     */
+    void offer(Runnable task)
+    {
+        if (closed)
+        {
+            metrics.logEventDropped();
+            write(task);
+            return;
+        }
+        long position = tail.get();
+        while (true)
+        {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    buffer[index] = task;
+                    sequences.set(index, position + 1);
+                    if (waiting)
+                    {
+                        LockSupport.unpark(thread);
+                    }
+                    if (stopped)
+                    {
+                        // The sink was closed while the message was added and the log thread might have missed it
+                        drain(true);
+                    }
+                    return;
+                }
+                position = tail.get();
+            }
+            else if (difference < 0)
+            {
+                // The slot still holds a message from the previous round, so the buffer is full
+                metrics.logEventDropped();
+                return;
+            }
+            else
+            {
+                position = tail.get();
+            }
+        }
+    }
+
+    private Runnable poll()
+    {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1)
+        {
+            return null;
+        }
+        Runnable task = buffer[index];
+        buffer[index] = null;
+        sequences.set(index, head + mask + 1);
+        head++;
+        return task;
+    }
+
+    private void run()
+    {
+        while (true)
+        {
+            Runnable task = poll();
+            if (task == null)
+            {
+                if (closed)
+                {
+                    stopped = true;
+                    drain(false);
+                    return;
+                }
+                waiting = true;
+                // Check again, a message might have been added before the flag was set
+                task = poll();
+                if (task == null && !closed)
+                {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                waiting = false;
+                if (task == null)
+                {
+                    continue;
+                }
+            }
+            write(task);
+        }
+    }
+
+    /**
+     * Write the messages that are left in the buffer once the log thread stopped taking them.
+     *
+     * @param count whether the messages are counted as not written by the log thread
+     */
+    private synchronized void drain(boolean count)
+    {
+        Runnable task;
+        while ((task = poll()) != null)
+        {
+            if (count)
+            {
+                metrics.logEventDropped();
+            }
+            write(task);
+        }
+    }
+
+    private static void write(Runnable task)
+    {
+        try
+        {
+            task.run();
+        }
+        catch (RuntimeException e)
+        {
+            System.err.println("Failed to write log message: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Write the remaining messages and stop the log thread. Messages that are logged afterwards are written on the thread
+     * that logs them.
+     *
+     * @param timeoutMs time to wait for the remaining messages to be written
+     */
+    void close(long timeoutMs)
+    {
+        closed = true;
+        LockSupport.unpark(thread);
+        try
+        {
+            thread.join(timeoutMs);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
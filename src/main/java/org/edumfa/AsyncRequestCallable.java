@@ -26,108 +26,478 @@ package org.edumfa;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.Response;
 import org.jetbrains.annotations.NotNull;
 
+import static java.net.HttpURLConnection.HTTP_UNAUTHORIZED;
 import static org.edumfa.EMConstants.ENDPOINT_AUTH;
 
 /**
  * Instances of this class are submitted to the thread pool so that requests can be executed in parallel.
+ * The request itself is executed without blocking by {@link #callAsync()}, which can also be used directly.
+ * All requests that are needed for the call share the deadline of its {@link RequestContext}, except for /auth, which
+ * may be shared with other calls and therefore has a context of its own.
+ * The response is parsed while it is read from the connection, so the result of the call is the parsed response.
  */
-public class AsyncRequestCallable implements Callable<String>, Callback
+public class AsyncRequestCallable<T> implements Callable<T>
 {
-    private String path;
+    private final String path;
     private final String method;
     private final Map<String, String> headers;
     private final Map<String, String> params;
     private final boolean authTokenRequired;
     private final Endpoint endpoint;
     private final EduMFA eduMFA;
-    final String[] callbackResult = {null};
-    private CountDownLatch latch;
+    private final RequestContext context;
+    private final Function<JsonBody, T> parse;
 
+    /**
+     * @param parse function to parse the response of the server, which receives null if there is no response
+     */
     public AsyncRequestCallable(EduMFA eduMFA, Endpoint endpoint, String path, Map<String, String> params,
-                                Map<String, String> headers, boolean authTokenRequired, String method)
+                                Map<String, String> headers, boolean authTokenRequired, String method, RequestContext context,
+                                Function<JsonBody, T> parse)
     {
         this.eduMFA = eduMFA;
         this.endpoint = endpoint;
         this.path = path;
         this.params = params;
-        this.headers = headers;
+        // Copy the headers, the auth token might be added to them
+        this.headers = headers != null ? new LinkedHashMap<>(headers) : new LinkedHashMap<>();
         this.authTokenRequired = authTokenRequired;
         this.method = method;
+        this.context = context;
+        this.parse = parse;
     }
 
     @Override
-    public String call() throws Exception
+    public T call() throws Exception
     {
-        // If an auth token is required for the request, get that first then do the actual request
+        // The time spent in the queue of the thread pool counts towards the deadline
+        context.checkActive();
+        try
+        {
+            return callAsync().get(context.remainingMs(), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            context.cancel();
+            throw context.timeout();
+        }
+        catch (InterruptedException e)
+        {
+            // The caller gave up, so stop the http request as well
+            context.cancel();
+            Thread.currentThread().interrupt();
+            throw context.cancelledException();
+        }
+        catch (ExecutionException e)
+        {
+            EMClientException clientException = EMClientException.unwrap(e);
+            if (clientException != null)
+            {
+                throw clientException;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Execute the request without blocking the calling thread. If an auth token is required, it is requested first
+     * and the actual request is sent from the okhttp callback of the /auth request.
+     *
+     * @return future that is completed with the parsed response of the server, or exceptionally with an EMClientException
+     * if the deadline is reached or the call is cancelled
+     */
+    CompletableFuture<T> callAsync()
+    {
+        if (!this.authTokenRequired)
+        {
+            return send(context, path, params, headers, method, parse);
+        }
+
+        if (!eduMFA.serviceAccountAvailable())
+        {
+            eduMFA.error("Service account is required to retrieve auth token!");
+            return CompletableFuture.completedFuture(noResponse());
+        }
+
+        return authToken().thenCompose(authToken -> sendAuthorized(authToken, true));
+    }
+
+    /**
+     * Get the auth token from the cache. If there is no valid token, one call requests it and the others wait for that
+     * request. The request is not owned by any of them, so each call stops only its own wait when its deadline is reached
+     * or it is cancelled.
+     */
+    private CompletableFuture<String> authToken()
+    {
+        CompletableFuture<String> shared = eduMFA.authTokenCache().get(eduMFA.serviceAccountKey(), this::fetchAuthToken);
+        if (shared.isDone())
+        {
+            return shared;
+        }
+        CompletableFuture<String> own = new CompletableFuture<>();
+        shared.whenComplete((authToken, t) ->
+                            {
+                                if (t != null)
+                                {
+                                    own.completeExceptionally(t);
+                                }
+                                else
+                                {
+                                    own.complete(authToken);
+                                }
+                            });
+        // The dependent stages of the wait may block, so they do not run on the scheduler or the cancelling thread
+        context.onCancel(() -> eduMFA.runAsync(() -> own.completeExceptionally(context.cancelledException())));
+        try
+        {
+            ScheduledFuture<?> timeout = eduMFA.scheduler().schedule(
+                    () -> eduMFA.runAsync(() -> own.completeExceptionally(context.timeout())), context.remainingMs(), TimeUnit.MILLISECONDS);
+            own.whenComplete((authToken, t) -> timeout.cancel(false));
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The client is closed
+            own.completeExceptionally(context.cancelledException());
+        }
+        return own;
+    }
+
+    /**
+     * Call /auth in its own lane, with a context of its own and the default request timeout.
+     */
+    private CompletableFuture<String> fetchAuthToken()
+    {
+        RequestContext authContext = eduMFA.newSharedContext(ENDPOINT_AUTH);
+        Bulkhead bulkhead = eduMFA.bulkhead(ENDPOINT_AUTH);
+        return bulkhead.acquire(authContext)
+                       .thenCompose(granted -> send(authContext, ENDPOINT_AUTH, eduMFA.serviceAccountParam(), Collections.emptyMap(), EMConstants.POST,
+                                                    eduMFA.parser::extractAuthToken)
+                               .whenComplete((authToken, t) -> bulkhead.release()));
+    }
+
+    /**
+     * Send the actual request with the given auth token. If the server rejects the token, it is removed from the cache
+     * and the request is sent once more with a new token.
+     */
+    private CompletableFuture<T> sendAuthorized(String authToken, boolean retryIfUnauthorized)
+    {
+        if (authToken == null)
+        {
+            // The parser already logs the error.
+            return CompletableFuture.completedFuture(noResponse());
+        }
+        headers.put(EMConstants.HEADER_AUTHORIZATION, authToken);
+        ResponseCallback<T> callback = new ResponseCallback<>(context, path, parse);
+        if (!enqueue(context, path, params, headers, method, callback))
+        {
+            return callback.future;
+        }
+        return callback.future.thenCompose(response ->
+        {
+            if (retryIfUnauthorized && callback.code == HTTP_UNAUTHORIZED)
+            {
+                eduMFA.log("The auth token was rejected, retrying with a new one.");
+                eduMFA.authTokenCache().invalidate(eduMFA.serviceAccountKey(), authToken);
+                return authToken().thenCompose(newToken -> sendAuthorized(newToken, false));
+            }
+            return CompletableFuture.completedFuture(response);
+        });
+    }
+
+    /**
+     * Execute the request on the calling thread, including the acquisition of the auth token if required.
+     *
+     * @return the parsed response of the server
+     * @throws EMClientException if the deadline is reached or the calling thread is interrupted
+     */
+    T callDirect() throws EMClientException
+    {
+        if (Thread.currentThread().isInterrupted())
+        {
+            context.cancel();
+        }
+        context.checkActive();
         if (this.authTokenRequired)
         {
             if (!eduMFA.serviceAccountAvailable())
             {
                 eduMFA.error("Service account is required to retrieve auth token!");
-                return null;
+                return noResponse();
             }
-            latch = new CountDownLatch(1);
-            String tmpPath = path;
-            path = ENDPOINT_AUTH;
-            endpoint.sendRequestAsync(ENDPOINT_AUTH, eduMFA.serviceAccountParam(), Collections.emptyMap(), EMConstants.POST, this);
-            if (!latch.await(30, TimeUnit.SECONDS))
+            return executeAuthorized(authTokenDirect(), true);
+        }
+        return execute(context, path, params, headers, method, parse);
+    }
+
+    /**
+     * Get the auth token from the cache. If /auth has to be called, that happens on the calling thread, while other calls
+     * wait for it until their own deadline. If the call that requests the token gives up, the next one requests it again.
+     */
+    private String authTokenDirect() throws EMClientException
+    {
+        while (true)
+        {
+            CompletableFuture<String> authToken = eduMFA.authTokenCache().get(eduMFA.serviceAccountKey(), this::fetchAuthTokenDirect);
+            try
+            {
+                return authToken.get(context.remainingMs(), TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e)
             {
-                eduMFA.error("Latch timed out...");
-                return "";
+                context.cancel();
+                throw context.timeout();
             }
-            // Extract the auth token from the response
-            String response = callbackResult[0];
-            String authToken = eduMFA.parser.extractAuthToken(response);
-            if (authToken == null)
+            catch (InterruptedException e)
+            {
+                context.cancel();
+                Thread.currentThread().interrupt();
+                throw context.cancelledException();
+            }
+            catch (ExecutionException e)
+            {
+                EMClientException clientException = EMClientException.unwrap(e);
+                if (clientException == null)
+                {
+                    throw new CompletionException(e.getCause());
+                }
+                if (Thread.currentThread().isInterrupted())
+                {
+                    // This call requested the token on its own thread and was interrupted
+                    context.cancel();
+                    throw context.cancelledException();
+                }
+                if (clientException.error().code != EMError.CLIENT_CANCELLED)
+                {
+                    throw clientException;
+                }
+                // The call that requested the token gave up, but this one did not, so it requests the token itself
+                context.checkActive();
+            }
+        }
+    }
+
+    /**
+     * Call /auth on the calling thread in its own lane, with a context of its own and the default request timeout.
+     */
+    private CompletableFuture<String> fetchAuthTokenDirect()
+    {
+        RequestContext authContext = eduMFA.newSharedContext(ENDPOINT_AUTH);
+        Bulkhead bulkhead = eduMFA.bulkhead(ENDPOINT_AUTH);
+        try
+        {
+            bulkhead.acquireBlocking(authContext);
+        }
+        catch (EMClientException e)
+        {
+            return EMClientException.failed(e);
+        }
+        try
+        {
+            return CompletableFuture.completedFuture(execute(authContext, ENDPOINT_AUTH, eduMFA.serviceAccountParam(), Collections.emptyMap(),
+                                                             EMConstants.POST, eduMFA.parser::extractAuthToken));
+        }
+        catch (EMClientException e)
+        {
+            return EMClientException.failed(e);
+        }
+        finally
+        {
+            bulkhead.release();
+        }
+    }
+
+    private T executeAuthorized(String authToken, boolean retryIfUnauthorized) throws EMClientException
+    {
+        if (authToken == null)
+        {
+            // The parser already logs the error.
+            return noResponse();
+        }
+        headers.put(EMConstants.HEADER_AUTHORIZATION, authToken);
+        try (Response response = endpoint.sendRequest(context, path, params, headers, method))
+        {
+            if (retryIfUnauthorized && response.code() == HTTP_UNAUTHORIZED)
             {
-                // The parser already logs the error.
-                return null;
+                eduMFA.log("The auth token was rejected, retrying with a new one.");
+                eduMFA.authTokenCache().invalidate(eduMFA.serviceAccountKey(), authToken);
+                return executeAuthorized(authTokenDirect(), false);
             }
-            // Add the auth token to the header
-            headers.put(EMConstants.HEADER_AUTHORIZATION, authToken);
-            path = tmpPath;
-            callbackResult[0] = null;
+            return readBody(path, response, parse);
         }
+        catch (IOException e)
+        {
+            return failed(context, e, parse);
+        }
+    }
 
-        // Do the actual request
-        latch = new CountDownLatch(1);
-        endpoint.sendRequestAsync(path, params, headers, method, this);
-        if (!latch.await(30, TimeUnit.SECONDS))
+    private <R> R execute(RequestContext context, String path, Map<String, String> params, Map<String, String> headers, String method,
+                          Function<JsonBody, R> parse) throws EMClientException
+    {
+        try (Response response = endpoint.sendRequest(context, path, params, headers, method))
         {
-            eduMFA.error("Latch timed out...");
-            return "";
+            return readBody(path, response, parse);
+        }
+        catch (IOException e)
+        {
+            return failed(context, e, parse);
         }
-        return callbackResult[0];
     }
 
-    @Override
-    public void onFailure(@NotNull Call call, @NotNull IOException e)
+    /**
+     * Errors of the client are passed on to the caller, other errors are logged and result in the parsed empty response.
+     */
+    private <R> R failed(RequestContext context, IOException e, Function<JsonBody, R> parse) throws EMClientException
     {
+        if (e instanceof EMClientException)
+        {
+            throw (EMClientException) e;
+        }
+        // okhttp reports the timeout and the cancellation of the call as IOException
+        context.checkActive();
         eduMFA.error(e);
-        latch.countDown();
+        return parse.apply(null);
     }
 
-    @Override
-    public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException
+    /**
+     * @return the result for a call that did not receive a response
+     */
+    T noResponse()
     {
-        if (response.body() != null)
+        return parse.apply(null);
+    }
+
+    /**
+     * Parse the body while it is read. The text of the body is only read as a whole if it is logged or the parser
+     * requests it.
+     *
+     * @throws IOException if the connection failed while the body was read
+     */
+    private <R> R readBody(String path, Response response, Function<JsonBody, R> parse) throws IOException
+    {
+        if (response.body() == null)
+        {
+            return parse.apply(null);
+        }
+        JsonBody body = JsonBody.of(response.body());
+        if (eduMFA.logEnabled() && !eduMFA.logExcludedEndpoints().contains(path) && !ENDPOINT_AUTH.equals(path))
         {
-            String s = response.body().string();
-            if (!eduMFA.logExcludedEndpoints().contains(path) && !ENDPOINT_AUTH.equals(path))
+            String s = body.text();
+            eduMFA.log(() -> path + ":\n" + eduMFA.parser.formatJson(s));
+        }
+        R result = parse.apply(body);
+        if (body.failure() != null)
+        {
+            throw body.failure();
+        }
+        return result;
+    }
+
+    private <R> CompletableFuture<R> send(RequestContext context, String path, Map<String, String> params, Map<String, String> headers,
+                                          String method, Function<JsonBody, R> parse)
+    {
+        ResponseCallback<R> callback = new ResponseCallback<>(context, path, parse);
+        enqueue(context, path, params, headers, method, callback);
+        return callback.future;
+    }
+
+    /**
+     * Pass the request to okhttp unless the call is no longer active, in which case the callback fails immediately.
+     *
+     * @return whether the request was passed to okhttp
+     */
+    private boolean enqueue(RequestContext context, String path, Map<String, String> params, Map<String, String> headers, String method,
+                            ResponseCallback<?> callback)
+    {
+        EMClientException failure = context.failure();
+        if (failure != null)
+        {
+            callback.future.completeExceptionally(failure);
+            return false;
+        }
+        endpoint.sendRequestAsync(context, path, params, headers, method, callback);
+        return true;
+    }
+
+    /**
+     * Completes its future directly from the okhttp callback, so no thread has to wait for the response.
+     */
+    private class ResponseCallback<R> implements Callback
+    {
+        private final RequestContext context;
+        private final String path;
+        private final Function<JsonBody, R> parse;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+        // Status code of the response, set before the future is completed
+        private int code = 0;
+
+        ResponseCallback(RequestContext context, String path, Function<JsonBody, R> parse)
+        {
+            this.context = context;
+            this.path = path;
+            this.parse = parse;
+        }
+
+        @Override
+        public void onFailure(@NotNull Call call, @NotNull IOException e)
+        {
+            if (e instanceof EMClientException)
+            {
+                future.completeExceptionally(e);
+                return;
+            }
+            EMClientException failure = context.failure();
+            if (failure != null)
+            {
+                // okhttp cancelled the call because the deadline was reached or the caller gave up
+                future.completeExceptionally(failure);
+                return;
+            }
+            eduMFA.error(e);
+            future.complete(parse.apply(null));
+        }
+
+        @Override
+        public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException
+        {
+            try
+            {
+                code = response.code();
+                future.complete(readBody(path, response, parse));
+            }
+            catch (IOException e)
+            {
+                EMClientException failure = context.failure();
+                if (failure != null)
+                {
+                    future.completeExceptionally(failure);
+                }
+                else
+                {
+                    future.complete(parse.apply(null));
+                }
+                throw e;
+            }
+            catch (RuntimeException e)
             {
-                eduMFA.log(path + ":\n" + eduMFA.parser.formatJson(s));
+                // The caller handles errors of the parser like other errors of the request
+                future.completeExceptionally(e);
             }
-            callbackResult[0] = s;
         }
-        latch.countDown();
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Caches the auth tokens of the service account until shortly before they expire, so that not every request that
+ * requires an auth token has to call /auth first. The expiry is taken from the exp claim of the JWT.
+ * If the token is missing or about to expire, only one request is sent to /auth and concurrent callers wait for its result.
+ */
+class AuthTokenCache
+{
+    // Refresh at most this long before the expiry, for short-lived tokens a fifth of the remaining lifetime is used
+    private static final long MAX_REFRESH_AHEAD_MS = 60 * 1000;
+
+    private final JSONParser parser;
+    private final boolean enabled;
+    // Runs the refresh ahead of the expiry, so that the caller gets the cached token without waiting for /auth
+    private final Executor executor;
+    private final ConcurrentHashMap<String, CachedToken> tokens = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+
+    AuthTokenCache(JSONParser parser, boolean enabled, Executor executor)
+    {
+        this.parser = parser;
+        this.enabled = enabled;
+        this.executor = executor;
+    }
+
+    /**
+     * Get the auth token for the given key. If a valid token is cached, it is returned immediately. If the cached token
+     * should be refreshed, the refresh is started and the cached token is returned until the new one is available.
+     *
+     * @param key   identifies the service account and realm
+     * @param fetch requests a new auth token, the future is completed with null if the token could not be retrieved
+     * @return future of the auth token or null
+     */
+    CompletableFuture<String> get(String key, Supplier<CompletableFuture<String>> fetch)
+    {
+        if (!enabled)
+        {
+            return fetch.get();
+        }
+        long now = System.currentTimeMillis();
+        CachedToken cached = tokens.get(key);
+        if (cached != null && now < cached.expiresAt)
+        {
+            if (now >= cached.refreshAt && !pending.containsKey(key))
+            {
+                executor.execute(() -> refresh(key, fetch));
+            }
+            return CompletableFuture.completedFuture(cached.token);
+        }
+        return refresh(key, fetch);
+    }
+
+    /**
+     * Remove the token from the cache if it is still the cached one, e.g. because the server did not accept it.
+     *
+     * @param key   identifies the service account and realm
+     * @param token token to remove
+     */
+    void invalidate(String key, String token)
+    {
+        CachedToken cached = tokens.get(key);
+        if (cached != null && cached.token.equals(token))
+        {
+            tokens.remove(key, cached);
+        }
+    }
+
+    private CompletableFuture<String> refresh(String key, Supplier<CompletableFuture<String>> fetch)
+    {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> inFlight = pending.putIfAbsent(key, future);
+        if (inFlight != null)
+        {
+            return inFlight;
+        }
+
+        CompletableFuture<String> fetched;
+        try
+        {
+            fetched = fetch.get();
+        }
+        catch (RuntimeException e)
+        {
+            pending.remove(key, future);
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        fetched.whenComplete((token, t) ->
+                             {
+                                 if (token != null)
+                                 {
+                                     long expiresAt = parser.extractJWTExpiry(token);
+                                     if (expiresAt > 0)
+                                     {
+                                         tokens.put(key, new CachedToken(token, expiresAt));
+                                     }
+                                 }
+                                 pending.remove(key, future);
+                                 if (t != null)
+                                 {
+                                     future.completeExceptionally(t);
+                                 }
+                                 else
+                                 {
+                                     future.complete(token);
+                                 }
+                             });
+        return future;
+    }
+
+    private static class CachedToken
+    {
+        final String token;
+        final long expiresAt;
+        final long refreshAt;
+
+        CachedToken(String token, long expiresAt)
+        {
+            this.token = token;
+            this.expiresAt = expiresAt;
+            // Randomize the refresh so that multiple clients do not refresh at the same time
+            long refreshAhead = Math.min(MAX_REFRESH_AHEAD_MS, Math.max(0, expiresAt - System.currentTimeMillis()) / 5);
+            long jitter = refreshAhead > 1 ? ThreadLocalRandom.current().nextLong(refreshAhead / 2) : 0;
+            this.refreshAt = expiresAt - refreshAhead - jitter;
+        }
+    }
+}
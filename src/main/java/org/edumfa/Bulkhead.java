@@ -0,0 +1,218 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of concurrent calls of one {@link EMLane}. Calls above the limit wait in a queue of the lane until
+ * a call of the same lane finishes or their deadline is reached. If the queue is full, the call is rejected. Calls of
+ * other lanes are not affected by either.
+ */
+class Bulkhead
+{
+    private static final CompletableFuture<Void> GRANTED = CompletableFuture.completedFuture(null);
+
+    private final EMLane lane;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final EMMetrics metrics;
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private int inFlight = 0;
+
+    /**
+     * @param maxConcurrent maximum number of concurrent calls, 0 for no limit
+     * @param maxQueued     maximum number of calls that wait for a permit
+     * @param scheduler     schedules the deadline of waiting calls
+     * @param executor      completes the permits of calls whose deadline is reached, because the dependent stages of a
+     *                      permit must not run on the scheduler
+     */
+    Bulkhead(EMLane lane, int maxConcurrent, int maxQueued, ScheduledExecutorService scheduler, Executor executor, EMMetrics metrics)
+    {
+        this.lane = lane;
+        this.maxConcurrent = maxConcurrent > 0 ? maxConcurrent : Integer.MAX_VALUE;
+        this.maxQueued = Math.max(0, maxQueued);
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get a permit to run a call in this lane. Every granted permit has to be returned with {@link #release()}.
+     *
+     * @param context context of the call, the wait for a permit does not exceed its deadline
+     * @return future that is completed when the permit is granted, or exceptionally if the call is rejected or the
+     * deadline is reached
+     */
+    CompletableFuture<Void> acquire(RequestContext context)
+    {
+        Waiter waiter;
+        synchronized (this)
+        {
+            if (inFlight < maxConcurrent && waiters.isEmpty())
+            {
+                inFlight++;
+                metrics.laneInFlight(lane, inFlight);
+                return GRANTED;
+            }
+            if (waiters.size() >= maxQueued)
+            {
+                metrics.laneRejected(lane);
+                return EMClientException.failed(saturated(context));
+            }
+            waiter = new Waiter(context);
+            waiters.add(waiter);
+            metrics.laneQueued(lane, waiters.size());
+        }
+        try
+        {
+            waiter.timeout = scheduler.schedule(() -> expire(waiter), context.remainingMs(), TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The client is closed
+            expire(waiter);
+        }
+        return waiter.permit;
+    }
+
+    /**
+     * Get a permit to run a call in this lane, waiting on the calling thread if necessary.
+     *
+     * @param context context of the call
+     * @throws EMClientException if the call is rejected, the deadline is reached or the calling thread is interrupted
+     */
+    void acquireBlocking(RequestContext context) throws EMClientException
+    {
+        CompletableFuture<Void> permit = acquire(context);
+        try
+        {
+            permit.get();
+        }
+        catch (ExecutionException e)
+        {
+            EMClientException clientException = EMClientException.unwrap(e);
+            throw clientException != null ? clientException : saturated(context);
+        }
+        catch (InterruptedException e)
+        {
+            context.cancel();
+            Thread.currentThread().interrupt();
+            if (!cancel(permit))
+            {
+                release();
+            }
+            throw context.cancelledException();
+        }
+    }
+
+    /**
+     * Stop waiting for the given permit.
+     *
+     * @return false if the permit was already granted, in which case it still has to be returned
+     */
+    boolean cancel(CompletableFuture<Void> permit)
+    {
+        synchronized (this)
+        {
+            if (waiters.removeIf(waiter -> waiter.permit == permit))
+            {
+                metrics.laneQueued(lane, waiters.size());
+                return true;
+            }
+        }
+        // The permit is either granted or about to be granted, in which case release() passes it on
+        return permit.cancel(false) || permit.isCompletedExceptionally();
+    }
+
+    /**
+     * Return a permit and pass it on to the next waiting call of this lane.
+     */
+    void release()
+    {
+        Waiter next;
+        synchronized (this)
+        {
+            next = waiters.poll();
+            if (next == null)
+            {
+                inFlight--;
+                metrics.laneInFlight(lane, inFlight);
+                return;
+            }
+            metrics.laneQueued(lane, waiters.size());
+        }
+        ScheduledFuture<?> timeout = next.timeout;
+        if (timeout != null)
+        {
+            timeout.cancel(false);
+        }
+        if (!next.permit.complete(null))
+        {
+            // The call stopped waiting in the meantime
+            release();
+        }
+    }
+
+    private void expire(Waiter waiter)
+    {
+        boolean removed;
+        synchronized (this)
+        {
+            removed = waiters.remove(waiter);
+            metrics.laneQueued(lane, waiters.size());
+        }
+        if (removed)
+        {
+            executor.execute(() -> waiter.permit.completeExceptionally(waiter.context.timeout()));
+        }
+    }
+
+    private EMClientException saturated(RequestContext context)
+    {
+        return new EMClientException(EMError.CLIENT_SATURATED,
+                                     "The request to " + context.path() + " was rejected because the " + lane + " lane is saturated.");
+    }
+
+    private static class Waiter
+    {
+        private final RequestContext context;
+        private final CompletableFuture<Void> permit = new CompletableFuture<>();
+        private volatile ScheduledFuture<?> timeout;
+
+        Waiter(RequestContext context)
+        {
+            this.context = context;
+        }
+    }
+}
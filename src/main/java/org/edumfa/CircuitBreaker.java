@@ -0,0 +1,172 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+/**
+ * Stops sending requests to a server if too many of the recent requests failed, so that callers fail fast instead of
+ * waiting for timeouts while the server is down. After the open duration, a single trial request is let through.
+ * If it succeeds, the circuit is closed again, otherwise it stays open for another period.
+ */
+class CircuitBreaker
+{
+    enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureRatePercent;
+    private final int minimumRequests;
+    private final long openDurationMs;
+    // Outcomes of the recent requests, true for a failure
+    private final boolean[] outcomes;
+    private int next = 0;
+    private int recorded = 0;
+    private int failures = 0;
+    private State state = State.CLOSED;
+    private long openedAt = 0;
+    private boolean trialInFlight = false;
+
+    /**
+     * @param failureRatePercent percentage of failed requests that opens the circuit, 0 to disable the circuit breaker
+     * @param minimumRequests    number of requests that have to be recorded before the circuit can open
+     * @param openDurationMs     time in milliseconds in which no requests are sent after the circuit opened
+     */
+    CircuitBreaker(int failureRatePercent, int minimumRequests, long openDurationMs)
+    {
+        this.failureRatePercent = failureRatePercent;
+        this.minimumRequests = Math.max(1, minimumRequests);
+        this.openDurationMs = openDurationMs;
+        this.outcomes = new boolean[Math.max(20, this.minimumRequests)];
+    }
+
+    /**
+     * Check if a request may be sent. If it returns true, the outcome of the request has to be recorded with
+     * {@link #onSuccess()}, {@link #onFailure()} or {@link #release()}.
+     *
+     * @return whether the request may be sent
+     */
+    synchronized boolean tryAcquire()
+    {
+        if (state == State.OPEN)
+        {
+            if (System.currentTimeMillis() - openedAt < openDurationMs)
+            {
+                return false;
+            }
+            // Let the trial request pass
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        if (state == State.HALF_OPEN)
+        {
+            if (trialInFlight)
+            {
+                return false;
+            }
+            trialInFlight = true;
+        }
+        return true;
+    }
+
+    synchronized void onSuccess()
+    {
+        if (state == State.HALF_OPEN)
+        {
+            reset();
+        }
+        else if (state == State.CLOSED)
+        {
+            record(false);
+        }
+    }
+
+    synchronized void onFailure()
+    {
+        if (state == State.HALF_OPEN)
+        {
+            open();
+        }
+        else if (state == State.CLOSED)
+        {
+            record(true);
+            if (failureRatePercent > 0 && recorded >= minimumRequests && failures * 100 >= failureRatePercent * recorded)
+            {
+                open();
+            }
+        }
+    }
+
+    /**
+     * The request was abandoned by the caller, so its outcome says nothing about the server.
+     */
+    synchronized void release()
+    {
+        if (state == State.HALF_OPEN)
+        {
+            trialInFlight = false;
+        }
+    }
+
+    synchronized State state()
+    {
+        return state;
+    }
+
+    private void record(boolean failure)
+    {
+        if (recorded == outcomes.length)
+        {
+            if (outcomes[next])
+            {
+                failures--;
+            }
+        }
+        else
+        {
+            recorded++;
+        }
+        outcomes[next] = failure;
+        if (failure)
+        {
+            failures++;
+        }
+        next = (next + 1) % outcomes.length;
+    }
+
+    private void open()
+    {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        trialInFlight = false;
+    }
+
+    private void reset()
+    {
+        state = State.CLOSED;
+        trialInFlight = false;
+        next = 0;
+        recorded = 0;
+        failures = 0;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of concurrent requests to the servers. The limit adapts to the latency of the servers: it grows slowly
+ * while the responses are as fast as usual and shrinks if they become slower or fail (additive increase, multiplicative
+ * decrease). Requests above the limit wait briefly in a queue, so that the requests pile up in the client instead of
+ * inside the server, and are rejected if no request finishes in time.
+ */
+class ConcurrencyLimiter
+{
+    private static final CompletableFuture<Void> GRANTED = CompletableFuture.completedFuture(null);
+    // Factor by which the limit shrinks if a request failed or was too slow
+    private static final double BACKOFF_RATIO = 0.9;
+    // Responses up to this multiple of the baseline latency are considered as fast as usual
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // Weight with which the baseline follows higher latencies, so that it adapts if the server becomes slower permanently
+    private static final double BASELINE_DRIFT = 0.01;
+
+    private final boolean enabled;
+    private final int maxLimit;
+    private final long maxQueueWaitMs;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final EMMetrics metrics;
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private double limit;
+    private int inFlight = 0;
+    private double baselineMs = 0;
+    private long lastDecrease = 0;
+
+    /**
+     * @param scheduler schedules the timeout of waiting requests
+     * @param executor  completes the permits of requests whose wait timed out, because the dependent stages of a permit
+     *                  must not run on the scheduler
+     */
+    ConcurrencyLimiter(EMConfig config, ScheduledExecutorService scheduler, Executor executor, EMMetrics metrics)
+    {
+        this.enabled = config.adaptiveConcurrency;
+        this.maxLimit = Math.max(1, config.concurrencyMaxLimit);
+        this.limit = Math.max(1, Math.min(maxLimit, config.concurrencyInitialLimit));
+        this.maxQueueWaitMs = config.concurrencyMaxQueueWaitMs;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.metrics = metrics;
+        metrics.concurrencyLimit((int) limit);
+    }
+
+    /**
+     * Get a permit to send a request. Every granted permit has to be returned with {@link #release(long, boolean)}.
+     *
+     * @param context context of the call, the wait for a permit does not exceed its deadline
+     * @return future that is completed when the permit is granted, or exceptionally if the request is rejected
+     */
+    CompletableFuture<Void> acquire(RequestContext context)
+    {
+        if (!enabled)
+        {
+            return GRANTED;
+        }
+        Waiter waiter;
+        synchronized (this)
+        {
+            if (inFlight < (int) limit && waiters.isEmpty())
+            {
+                inFlight++;
+                return GRANTED;
+            }
+            if (waiters.size() >= maxLimit || maxQueueWaitMs <= 0)
+            {
+                metrics.concurrencyLimitRejected();
+                return EMClientException.failed(overloaded());
+            }
+            waiter = new Waiter();
+            waiters.add(waiter);
+        }
+        try
+        {
+            waiter.timeout = scheduler.schedule(() -> expire(waiter), Math.min(maxQueueWaitMs, context.remainingMs()), TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The client is closed
+            expire(waiter);
+        }
+        return waiter.permit;
+    }
+
+    /**
+     * Get a permit to send a request, waiting on the calling thread if necessary.
+     *
+     * @param context context of the call
+     * @throws EMClientException if the request is rejected or the calling thread is interrupted
+     */
+    void acquireBlocking(RequestContext context) throws EMClientException
+    {
+        CompletableFuture<Void> permit = acquire(context);
+        try
+        {
+            permit.get();
+        }
+        catch (ExecutionException e)
+        {
+            EMClientException clientException = EMClientException.unwrap(e);
+            throw clientException != null ? clientException : overloaded();
+        }
+        catch (InterruptedException e)
+        {
+            context.cancel();
+            Thread.currentThread().interrupt();
+            if (!cancel(permit))
+            {
+                // The permit was granted in the meantime
+                release(-1, false);
+            }
+            throw context.cancelledException();
+        }
+    }
+
+    /**
+     * Return a permit and adapt the limit to the outcome of the request.
+     *
+     * @param latencyMs time until the response was received, -1 if the request has no meaningful latency
+     * @param dropped   whether the request failed or was rejected by the server
+     */
+    void release(long latencyMs, boolean dropped)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        List<Waiter> granted = new ArrayList<>();
+        synchronized (this)
+        {
+            inFlight--;
+            if (dropped)
+            {
+                decrease();
+            }
+            else if (latencyMs >= 0)
+            {
+                update(latencyMs);
+            }
+            while (inFlight < (int) limit && !waiters.isEmpty())
+            {
+                inFlight++;
+                granted.add(waiters.poll());
+            }
+            metrics.concurrencyLimit((int) limit);
+        }
+        for (Waiter waiter : granted)
+        {
+            ScheduledFuture<?> timeout = waiter.timeout;
+            if (timeout != null)
+            {
+                timeout.cancel(false);
+            }
+            waiter.permit.complete(null);
+        }
+    }
+
+    private void update(long latencyMs)
+    {
+        // The baseline is the lowest latency, which slowly follows higher latencies
+        if (baselineMs == 0 || latencyMs < baselineMs)
+        {
+            baselineMs = Math.max(1, latencyMs);
+        }
+        else
+        {
+            baselineMs += (latencyMs - baselineMs) * BASELINE_DRIFT;
+        }
+
+        if (latencyMs > baselineMs * LATENCY_TOLERANCE)
+        {
+            decrease();
+        }
+        else if (inFlight + 1 >= limit / 2)
+        {
+            // Only grow if the limit is actually used, by 1 per limit responses
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    private void decrease()
+    {
+        // Shrink at most once per round trip, because all requests of the round see the same slow server
+        long now = System.nanoTime();
+        if (now - lastDecrease >= TimeUnit.MILLISECONDS.toNanos((long) baselineMs))
+        {
+            limit = Math.max(1, limit * BACKOFF_RATIO);
+            lastDecrease = now;
+        }
+    }
+
+    private void expire(Waiter waiter)
+    {
+        boolean removed;
+        synchronized (this)
+        {
+            removed = waiters.remove(waiter);
+        }
+        if (removed)
+        {
+            metrics.concurrencyLimitRejected();
+            executor.execute(() -> waiter.permit.completeExceptionally(overloaded()));
+        }
+    }
+
+    /**
+     * @return whether the waiting for the permit was stopped, false if it was already granted
+     */
+    private boolean cancel(CompletableFuture<Void> permit)
+    {
+        synchronized (this)
+        {
+            if (!waiters.removeIf(waiter -> waiter.permit == permit))
+            {
+                return permit.isCompletedExceptionally();
+            }
+        }
+        return true;
+    }
+
+    private static EMClientException overloaded()
+    {
+        return new EMClientException(EMError.CLIENT_OVERLOADED,
+                                     "The request was rejected because the limit of concurrent requests to the server is reached.");
+    }
+
+    private static class Waiter
+    {
+        private final CompletableFuture<Void> permit = new CompletableFuture<>();
+        private volatile ScheduledFuture<?> timeout;
+    }
+}
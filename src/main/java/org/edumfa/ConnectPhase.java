@@ -0,0 +1,72 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Records whether a call failed while connecting to the server. In that case the request was not sent, so it can be
+ * sent again or to another server even if it is not idempotent. The listener is attached to the request as tag.
+ */
+class ConnectPhase extends EventListener
+{
+    static final EventListener.Factory FACTORY = call ->
+    {
+        ConnectPhase phase = call.request().tag(ConnectPhase.class);
+        return phase != null ? phase : EventListener.NONE;
+    };
+
+    private volatile boolean connectFailed = false;
+    private volatile boolean connectionAcquired = false;
+
+    @Override
+    public void connectFailed(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy,
+                              @Nullable Protocol protocol, @NotNull IOException ioe)
+    {
+        connectFailed = true;
+    }
+
+    @Override
+    public void connectionAcquired(@NotNull Call call, @NotNull Connection connection)
+    {
+        connectionAcquired = true;
+    }
+
+    /**
+     * @return whether the call failed to connect and never had a connection to send the request on
+     */
+    static boolean failedToConnect(Call call)
+    {
+        ConnectPhase phase = call != null ? call.request().tag(ConnectPhase.class) : null;
+        return phase != null && phase.connectFailed && !phase.connectionAcquired;
+    }
+}
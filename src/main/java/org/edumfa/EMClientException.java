@@ -0,0 +1,78 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Signals that a request could not be processed because of the client itself, e.g. because it is saturated.
+ * The error is passed to the plugin as EMError in the result of the request.
+ */
+class EMClientException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final EMError error;
+
+    EMClientException(int code, String message)
+    {
+        super(message);
+        this.error = new EMError(code, message);
+    }
+
+    EMError error()
+    {
+        return error;
+    }
+
+    /**
+     * Find the EMClientException that caused the failure of a future.
+     *
+     * @param t exception the future was completed with, possibly wrapped in a CompletionException or ExecutionException
+     * @return the EMClientException or null if the failure has a different cause
+     */
+    static EMClientException unwrap(Throwable t)
+    {
+        while (t != null)
+        {
+            if (t instanceof EMClientException)
+            {
+                return (EMClientException) t;
+            }
+            t = t.getCause();
+        }
+        return null;
+    }
+
+    /**
+     * Java 8 has no CompletableFuture.failedFuture.
+     */
+    static <T> CompletableFuture<T> failed(Throwable t)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+}
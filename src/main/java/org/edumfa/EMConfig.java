@@ -23,9 +23,44 @@
  * */
 package org.edumfa;
 
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
 class EMConfig
 {
     String serverURL;
+    // The first entry is serverURL
+    List<String> serverURLs;
+    long healthCheckIntervalMs = 10000;
+    int circuitBreakerFailureRatePercent = 0;
+    int circuitBreakerMinimumRequests = 10;
+    long circuitBreakerOpenDurationMs = 30000;
+    int hedgingPercentile = 0;
+    int maxRetries = 0;
+    long retryInitialBackoffMs = 100;
+    long retryMaxBackoffMs = 2000;
+    boolean adaptiveConcurrency = false;
+    int concurrencyInitialLimit = 20;
+    int concurrencyMaxLimit = 64;
+    long concurrencyMaxQueueWaitMs = 100;
+    // Lanes without an entry are not limited
+    Map<EMLane, Integer> laneMaxConcurrent = new EnumMap<>(EMLane.class);
+    Map<EMLane, Integer> laneMaxQueued = new EnumMap<>(EMLane.class);
+    boolean prioritizeRequests = false;
+    long priorityMaxWaitMs = 1000;
+    boolean fairScheduling = false;
+    int tenantMaxInFlight = 0;
+    Map<String, Integer> tenantWeights = new HashMap<>();
+    long loadSheddingMaxQueueWaitMs = 0;
+    boolean coalescePolls = false;
+    long pollResultReuseMs = 0;
+    boolean keepRawResponses = true;
     String realm = "";
     boolean doSSLVerify = true;
     String serviceAccountName = "";
@@ -34,10 +69,25 @@ class EMConfig
     boolean disableLog = false;
     String userAgent;
     int httpTimeoutMs = 30000;
+    boolean directExecution = false;
+    boolean virtualThreads = false;
+    boolean cacheAuthToken = true;
+    ExecutorService executor = null;
+    int threadPoolCoreSize = 20;
+    int threadPoolMaxSize = 20;
+    int threadPoolQueueSize = 1000;
+    RejectedExecutionHandler rejectionHandler = new ThreadPoolExecutor.AbortPolicy();
+    int maxRequests = 64;
+    int maxRequestsPerHost = 64;
+    int maxIdleConnections = 64;
+    long keepAliveDurationMs = 5 * 60 * 1000;
+    int asyncLogCapacity = 0;
+    int requestTimeoutMs = 30000;
 
     public EMConfig(String serverURL, String userAgent)
     {
         this.serverURL = serverURL;
+        this.serverURLs = Collections.singletonList(serverURL);
         this.userAgent = userAgent;
     }
 }
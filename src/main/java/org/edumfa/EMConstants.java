@@ -46,6 +46,7 @@ public class EMConstants
     public static final String HEADER_ORIGIN = "Origin";
     public static final String HEADER_AUTHORIZATION = "Authorization";
     public static final String HEADER_USER_AGENT = "User-Agent";
+    public static final String HEADER_RETRY_AFTER = "Retry-After";
 
     // TOKEN TYPES
     public static final String TOKEN_TYPE_PUSH = "push";
@@ -25,6 +25,36 @@ package org.edumfa;
 
 public class EMError
 {
+    // Errors of the client itself have negative codes, so they can be distinguished from the errors of the server
+    /**
+     * The request was rejected because the thread pool and its queue are full.
+     */
+    public static final int CLIENT_SATURATED = -1;
+    /**
+     * The request did not complete before its deadline.
+     */
+    public static final int CLIENT_TIMEOUT = -2;
+    /**
+     * The request was cancelled, e.g. because the calling thread was interrupted.
+     */
+    public static final int CLIENT_CANCELLED = -3;
+    /**
+     * The request was not sent because too many of the recent requests to the servers failed, see
+     * {@link EduMFA.Builder#circuitBreaker(int, int, long)}.
+     */
+    public static final int SERVER_UNAVAILABLE = -4;
+    /**
+     * The server responded with 429 or 503 and asked the client to wait, or the request could not be sent before its
+     * deadline because of that.
+     */
+    public static final int SERVER_THROTTLED = -5;
+    /**
+     * The request was rejected at once because the client is overloaded: either the adaptive limit of concurrent requests
+     * is reached and no request finished in time, see {@link EduMFA.Builder#adaptiveConcurrency(int, int, long)}, or the
+     * request would wait too long for a thread, see {@link EduMFA.Builder#loadShedding(long)}. The user can try again later.
+     */
+    public static final int CLIENT_OVERLOADED = -6;
+
     public EMError(int code, String message)
     {
         this.code = code;
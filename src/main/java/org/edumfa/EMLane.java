@@ -0,0 +1,69 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+/**
+ * Classes of requests that are executed in separate lanes, so that e.g. the administration of tokens can not use up the
+ * capacity for the authentication of users, see {@link EduMFA.Builder#bulkhead(EMLane, int, int)}.
+ */
+public enum EMLane
+{
+    /**
+     * Authentication of users: /validate/check, /validate/triggerchallenge and the other /validate endpoints
+     */
+    VALIDATE,
+    /**
+     * Polling of push transactions: /validate/polltransaction
+     */
+    POLL,
+    /**
+     * Administration of tokens with the service account: /token/ and /token/init
+     */
+    ADMIN,
+    /**
+     * Retrieval of the auth token of the service account: /auth
+     */
+    AUTH;
+
+    /**
+     * @param path path to the endpoint of the edumfa server
+     * @return lane in which requests to the endpoint are executed
+     */
+    static EMLane of(String path)
+    {
+        if (EMConstants.ENDPOINT_AUTH.equals(path))
+        {
+            return AUTH;
+        }
+        if (EMConstants.ENDPOINT_POLLTRANSACTION.equals(path))
+        {
+            return POLL;
+        }
+        if (path.startsWith("/validate/"))
+        {
+            return VALIDATE;
+        }
+        return ADMIN;
+    }
+}
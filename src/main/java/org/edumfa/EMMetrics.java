@@ -0,0 +1,243 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the java-client, which can be passed on to the monitoring of the plugin.
+ * All counters start at 0 when the edumfa instance is built.
+ */
+public class EMMetrics
+{
+    private final LongAdder droppedLogEvents = new LongAdder();
+    private final LongAdder circuitBreakerRejections = new LongAdder();
+    private final LongAdder hedgedRequests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder throttledRequests = new LongAdder();
+    private final LongAdder concurrencyLimitRejections = new LongAdder();
+    private volatile int concurrencyLimit = 0;
+    private final AtomicIntegerArray laneInFlight = new AtomicIntegerArray(EMLane.values().length);
+    private final AtomicIntegerArray laneQueued = new AtomicIntegerArray(EMLane.values().length);
+    private final LongAdder tenantRejections = new LongAdder();
+    private final LongAdder shedRequests = new LongAdder();
+    private final LongAdder droppedQueuedRequests = new LongAdder();
+    private final LongAdder coalescedPolls = new LongAdder();
+    private final LongAdder[] laneRejections = newAdders(EMLane.values().length);
+
+    private static LongAdder[] newAdders(int count)
+    {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++)
+        {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * @return number of log messages that were discarded because the asynchronous log buffer was full, or that were written
+     *         on the calling thread because the asynchronous log was already closed
+     */
+    public long droppedLogEvents()
+    {
+        return droppedLogEvents.sum();
+    }
+
+    void logEventDropped()
+    {
+        droppedLogEvents.increment();
+    }
+
+    /**
+     * @return number of requests that were not sent because the circuit breakers of all servers were open
+     */
+    public long circuitBreakerRejections()
+    {
+        return circuitBreakerRejections.sum();
+    }
+
+    void circuitBreakerRejected()
+    {
+        circuitBreakerRejections.increment();
+    }
+
+    /**
+     * @return number of additional requests that were sent because the first request took longer than usual
+     */
+    public long hedgedRequests()
+    {
+        return hedgedRequests.sum();
+    }
+
+    void requestHedged()
+    {
+        hedgedRequests.increment();
+    }
+
+    /**
+     * @return number of requests that were sent again because the previous attempt failed
+     */
+    public long retries()
+    {
+        return retries.sum();
+    }
+
+    void requestRetried()
+    {
+        retries.increment();
+    }
+
+    /**
+     * @return number of requests that failed because the servers asked the client to wait
+     */
+    public long throttledRequests()
+    {
+        return throttledRequests.sum();
+    }
+
+    void requestThrottled()
+    {
+        throttledRequests.increment();
+    }
+
+    /**
+     * @return number of requests that were rejected because the adaptive limit of concurrent requests was reached
+     */
+    public long concurrencyLimitRejections()
+    {
+        return concurrencyLimitRejections.sum();
+    }
+
+    void concurrencyLimitRejected()
+    {
+        concurrencyLimitRejections.increment();
+    }
+
+    /**
+     * @return current adaptive limit of concurrent requests to the servers
+     */
+    public int concurrencyLimit()
+    {
+        return concurrencyLimit;
+    }
+
+    void concurrencyLimit(int limit)
+    {
+        this.concurrencyLimit = limit;
+    }
+
+    /**
+     * @return number of calls of the lane that are currently running
+     */
+    public int laneInFlight(EMLane lane)
+    {
+        return laneInFlight.get(lane.ordinal());
+    }
+
+    void laneInFlight(EMLane lane, int inFlight)
+    {
+        laneInFlight.set(lane.ordinal(), inFlight);
+    }
+
+    /**
+     * @return number of calls of the lane that are currently waiting for a running call of the lane to finish
+     */
+    public int laneQueued(EMLane lane)
+    {
+        return laneQueued.get(lane.ordinal());
+    }
+
+    void laneQueued(EMLane lane, int queued)
+    {
+        laneQueued.set(lane.ordinal(), queued);
+    }
+
+    /**
+     * @return number of calls of the lane that were rejected because its queue was full
+     */
+    public long laneRejections(EMLane lane)
+    {
+        return laneRejections[lane.ordinal()].sum();
+    }
+
+    void laneRejected(EMLane lane)
+    {
+        laneRejections[lane.ordinal()].increment();
+    }
+
+    /**
+     * @return number of calls that were rejected because their tenant had too many calls in flight
+     */
+    public long tenantRejections()
+    {
+        return tenantRejections.sum();
+    }
+
+    void tenantRejected()
+    {
+        tenantRejections.increment();
+    }
+
+    /**
+     * @return number of requests that were rejected because they would have waited too long for a thread
+     */
+    public long shedRequests()
+    {
+        return shedRequests.sum();
+    }
+
+    void requestShed()
+    {
+        shedRequests.increment();
+    }
+
+    /**
+     * @return number of requests that were not sent because their caller gave up or their deadline passed while they
+     * waited for a thread
+     */
+    public long droppedQueuedRequests()
+    {
+        return droppedQueuedRequests.sum();
+    }
+
+    void queuedRequestDropped()
+    {
+        droppedQueuedRequests.increment();
+    }
+
+    /**
+     * @return number of polls that shared the request of a concurrent poll for the same transaction
+     */
+    public long coalescedPolls()
+    {
+        return coalescedPolls.sum();
+    }
+
+    void pollCoalesced()
+    {
+        coalescedPolls.increment();
+    }
+}
@@ -58,6 +58,13 @@ public class EMResponse
 
     public EMError error = null;
 
+    static EMResponse fromError(EMError error)
+    {
+        EMResponse response = new EMResponse();
+        response.error = error;
+        return response;
+    }
+
     public boolean pushAvailable()
     {
         return multichallenge.stream().anyMatch(c -> TOKEN_TYPE_PUSH.equals(c.getType()));
@@ -25,19 +25,34 @@ package org.edumfa;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static org.edumfa.EMConstants.ENDPOINT_AUTH;
 import static org.edumfa.EMConstants.ENDPOINT_POLLTRANSACTION;
@@ -70,9 +85,21 @@ public class EduMFA implements Closeable
     private final IPISimpleLogger simpleLog;
     private final Endpoint endpoint;
     // Thread pool for connections
-    private final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(1000);
-    private final ThreadPoolExecutor threadPool = new ThreadPoolExecutor(20, 20, 10, TimeUnit.SECONDS, queue);
+    private final ExecutorService threadPool;
+    // Single thread for delayed tasks like polling, it must never block
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final Map<EMLane, Bulkhead> bulkheads = new EnumMap<>(EMLane.class);
     final JSONParser parser;
+    private final AuthTokenCache authTokenCache;
+    private final EMMetrics metrics = new EMMetrics();
+    // Only set if asynchronous logging is enabled
+    private final AsyncLogSink logSink;
+    // Timeout for the requests of the current thread if it was set by withTimeout
+    private final ThreadLocal<Long> callTimeoutMs = new ThreadLocal<>();
+    private final ThreadLocal<String> callTenant = new ThreadLocal<>();
+    private final TenantLimiter tenantLimiter;
+    private final LoadShedder loadShedder;
+    private final SingleFlight<String, Boolean> pollFlights;
     // Responses from these endpoints will not be logged. The list can be overwritten.
     private List<String> logExcludedEndpoints = Arrays.asList(EMConstants.ENDPOINT_AUTH,
                                                               EMConstants.ENDPOINT_POLLTRANSACTION); //Collections.emptyList(); //
@@ -82,9 +109,58 @@ public class EduMFA implements Closeable
         this.log = logger;
         this.simpleLog = simpleLog;
         this.configuration = configuration;
+        this.logSink = configuration.asyncLogCapacity > 0 && !configuration.disableLog
+                       ? new AsyncLogSink(configuration.asyncLogCapacity, metrics) : null;
+        this.tenantLimiter = configuration.fairScheduling ? new TenantLimiter(configuration.tenantMaxInFlight, metrics) : null;
+        this.loadShedder = configuration.loadSheddingMaxQueueWaitMs > 0 ? new LoadShedder(configuration.loadSheddingMaxQueueWaitMs, metrics) : null;
+        this.pollFlights = configuration.coalescePolls ? new SingleFlight<>(metrics::pollCoalesced, configuration.pollResultReuseMs) : null;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, runnable ->
+        {
+            Thread thread = new Thread(runnable, "edumfa-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.scheduler.setKeepAliveTime(10, TimeUnit.SECONDS);
+        this.scheduler.allowCoreThreadTimeOut(true);
+        for (EMLane lane : EMLane.values())
+        {
+            bulkheads.put(lane, new Bulkhead(lane, configuration.laneMaxConcurrent.getOrDefault(lane, 0),
+                                             configuration.laneMaxQueued.getOrDefault(lane, 0), scheduler, this::runAsync, metrics));
+        }
         this.endpoint = new Endpoint(this);
         this.parser = new JSONParser(this);
-        this.threadPool.allowCoreThreadTimeOut(true);
+        this.authTokenCache = new AuthTokenCache(parser, configuration.cacheAuthToken, this::runAsync);
+        this.threadPool = createThreadPool();
+    }
+
+    private ExecutorService createThreadPool()
+    {
+        if (configuration.executor != null)
+        {
+            return configuration.executor;
+        }
+        if (configuration.virtualThreads)
+        {
+            try
+            {
+                // Virtual threads are available since Java 21, but the client has to run with Java 8, so look the factory up at runtime
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                log("Virtual threads are not supported by this Java version, using the thread pool instead.");
+            }
+        }
+        BlockingQueue<Runnable> queue = configuration.prioritizeRequests || configuration.fairScheduling
+                                        ? new PriorityTaskQueue(configuration.threadPoolQueueSize, configuration.priorityMaxWaitMs,
+                                                                configuration.tenantWeights)
+                                        : new ArrayBlockingQueue<>(configuration.threadPoolQueueSize);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(configuration.threadPoolCoreSize, configuration.threadPoolMaxSize, 10, TimeUnit.SECONDS,
+                                                         queue, configuration.rejectionHandler);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
 
     /**
@@ -175,6 +251,12 @@ public class EduMFA implements Closeable
      * @return EMResponse object containing the response or null if error
      */
     private EMResponse getEMResponse(String type, String input, String pass, Map<String, String> headers, String transactionId)
+    {
+        return runRequest(ENDPOINT_VALIDATE_CHECK, validateCheckParams(type, input, pass, transactionId), headers, false, POST,
+                          this::parseEMResponse, EMResponse::fromError);
+    }
+
+    private Map<String, String> validateCheckParams(String type, String input, String pass, String transactionId)
     {
         Map<String, String> params = new LinkedHashMap<>();
         // Add forwarded user or serial to the params
@@ -185,8 +267,31 @@ public class EduMFA implements Closeable
         {
             params.put(TRANSACTION_ID, transactionId);
         }
-        String response = runRequestAsync(ENDPOINT_VALIDATE_CHECK, params, headers, false, POST);
-        return this.parser.parseEMResponse(response);
+        return params;
+    }
+
+    /**
+     * @see edumfa#validateCheckAsync(String, String, String, Map)
+     */
+    public CompletableFuture<EMResponse> validateCheckAsync(String username, String pass)
+    {
+        return this.validateCheckAsync(username, pass, null, Collections.emptyMap());
+    }
+
+    /**
+     * Non-blocking variant of {@link #validateCheck(String, String, String, Map)}.
+     * The returned future is completed from the callback of the http client, no thread is blocked while waiting for the server.
+     *
+     * @param username      username
+     * @param pass          pass/otp value
+     * @param transactionId optional, will be appended if set
+     * @param headers       optional headers for the request
+     * @return future of the EMResponse, which is completed with null if error
+     */
+    public CompletableFuture<EMResponse> validateCheckAsync(String username, String pass, String transactionId, Map<String, String> headers)
+    {
+        return runRequestNonBlocking(ENDPOINT_VALIDATE_CHECK, validateCheckParams(USER, username, pass, transactionId), headers, false, POST,
+                                     this::parseEMResponse, EMResponse::fromError);
     }
 
     /**
@@ -224,8 +329,7 @@ public class EduMFA implements Closeable
         hdrs.put(HEADER_ORIGIN, origin);
         hdrs.putAll(headers);
 
-        String response = runRequestAsync(ENDPOINT_VALIDATE_CHECK, params, hdrs, false, POST);
-        return this.parser.parseEMResponse(response);
+        return runRequest(ENDPOINT_VALIDATE_CHECK, params, hdrs, false, POST, this::parseEMResponse, EMResponse::fromError);
     }
 
     /**
@@ -257,8 +361,7 @@ public class EduMFA implements Closeable
         Map<String, String> u2fParams = parser.parseU2FSignResponse(u2fSignResponse);
         params.putAll(u2fParams);
 
-        String response = runRequestAsync(ENDPOINT_VALIDATE_CHECK, params, headers, false, POST);
-        return this.parser.parseEMResponse(response);
+        return runRequest(ENDPOINT_VALIDATE_CHECK, params, headers, false, POST, this::parseEMResponse, EMResponse::fromError);
     }
 
     /**
@@ -285,16 +388,49 @@ public class EduMFA implements Closeable
             log("No service account configured. Cannot trigger challenges");
             return null;
         }
+        return runRequest(ENDPOINT_TRIGGERCHALLENGE, triggerChallengesParams(username), headers, true, POST, this::parseEMResponse,
+                          EMResponse::fromError);
+    }
+
+    private Map<String, String> triggerChallengesParams(String username)
+    {
         Map<String, String> params = new LinkedHashMap<>();
         params.put(USER, username);
         appendRealm(params);
+        return params;
+    }
+
+    /**
+     * @see edumfa#triggerChallengesAsync(String, Map)
+     */
+    public CompletableFuture<EMResponse> triggerChallengesAsync(String username)
+    {
+        return this.triggerChallengesAsync(username, new LinkedHashMap<>());
+    }
+
+    /**
+     * Non-blocking variant of {@link #triggerChallenges(String, Map)}. This requires a service account to be set.
+     *
+     * @param username username to trigger challenges for
+     * @param headers  optional headers for the request
+     * @return future of the server response, which is completed with null if error
+     */
+    public CompletableFuture<EMResponse> triggerChallengesAsync(String username, Map<String, String> headers)
+    {
+        Objects.requireNonNull(username, "Username is required!");
 
-        String response = runRequestAsync(ENDPOINT_TRIGGERCHALLENGE, params, headers, true, POST);
-        return this.parser.parseEMResponse(response);
+        if (!serviceAccountAvailable())
+        {
+            log("No service account configured. Cannot trigger challenges");
+            return CompletableFuture.completedFuture(null);
+        }
+        return runRequestNonBlocking(ENDPOINT_TRIGGERCHALLENGE, triggerChallengesParams(username), headers, true, POST,
+                                     this::parseEMResponse, EMResponse::fromError);
     }
 
     /**
-     * Poll for status of the given transaction ID once.
+     * Poll for status of the given transaction ID once. If {@link Builder#coalescePolls(long)} is set, concurrent polls
+     * for the same transaction ID share one request.
      *
      * @param transactionId transaction ID to poll for
      * @return the status value, true or false
@@ -303,10 +439,221 @@ public class EduMFA implements Closeable
     {
         Objects.requireNonNull(transactionId, "TransactionID is required!");
 
-        String response = runRequestAsync(ENDPOINT_POLLTRANSACTION, Collections.singletonMap(TRANSACTION_ID, transactionId), Collections.emptyMap(),
-                                          false, GET);
-        EMResponse EMResponse = this.parser.parseEMResponse(response);
-        return EMResponse.value;
+        if (pollFlights == null)
+        {
+            return runPollTransaction(transactionId);
+        }
+        long start = System.nanoTime();
+        long timeoutMs = callTimeoutMs();
+        // If no poll for the transaction is in flight, this call sends the request on this thread as usual
+        CompletableFuture<Boolean> request = new CompletableFuture<>();
+        AtomicBoolean leader = new AtomicBoolean();
+        CompletableFuture<Boolean> poll = pollFlights.get(transactionId, () ->
+        {
+            leader.set(true);
+            return request;
+        });
+        if (leader.get())
+        {
+            Boolean value = null;
+            try
+            {
+                value = runSharedPollTransaction(transactionId);
+            }
+            finally
+            {
+                request.complete(value);
+            }
+            return value != null && value;
+        }
+        // Otherwise wait for the shared request, but not longer than for a request of this call
+        Boolean value = null;
+        try
+        {
+            value = poll.get(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            poll.cancel(false);
+            error("The request to " + ENDPOINT_POLLTRANSACTION + " did not complete in time.");
+            return false;
+        }
+        catch (InterruptedException e)
+        {
+            poll.cancel(false);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException e)
+        {
+            error(e);
+        }
+        if (value != null)
+        {
+            return value;
+        }
+        // The shared request failed, so send an own one in the remaining time
+        long remainingMs = timeoutMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (remainingMs <= 0)
+        {
+            error("The request to " + ENDPOINT_POLLTRANSACTION + " did not complete in time.");
+            return false;
+        }
+        return withTimeout(remainingMs, () -> runPollTransaction(transactionId));
+    }
+
+    /**
+     * Non-blocking variant of {@link #pollTransaction(String)}.
+     *
+     * @param transactionId transaction ID to poll for
+     * @return future of the status value, which is completed with false if error
+     */
+    public CompletableFuture<Boolean> pollTransactionAsync(String transactionId)
+    {
+        Objects.requireNonNull(transactionId, "TransactionID is required!");
+
+        if (pollFlights == null)
+        {
+            return sendPollTransaction(transactionId);
+        }
+        long start = System.nanoTime();
+        long timeoutMs = callTimeoutMs();
+        AtomicBoolean leader = new AtomicBoolean();
+        CompletableFuture<Boolean> poll = pollFlights.get(transactionId, () ->
+        {
+            leader.set(true);
+            return sendSharedPollTransaction(transactionId);
+        });
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<Boolean>> retry = new AtomicReference<>();
+        poll.whenComplete((value, t) ->
+                          {
+                              if (result.isDone())
+                              {
+                                  return;
+                              }
+                              if (value != null || leader.get())
+                              {
+                                  result.complete(value != null && value);
+                                  return;
+                              }
+                              // The shared request failed, so send an own one in the remaining time
+                              long remainingMs = timeoutMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                              if (remainingMs <= 0)
+                              {
+                                  error("The request to " + ENDPOINT_POLLTRANSACTION + " did not complete in time.");
+                                  result.complete(false);
+                                  return;
+                              }
+                              CompletableFuture<Boolean> own = withTimeout(remainingMs, () -> sendPollTransaction(transactionId));
+                              retry.set(own);
+                              own.whenComplete((ownValue, ownError) -> result.complete(ownValue != null && ownValue));
+                              if (result.isCancelled())
+                              {
+                                  own.cancel(false);
+                              }
+                          });
+        result.whenComplete((value, t) ->
+                            {
+                                if (result.isCancelled())
+                                {
+                                    poll.cancel(false);
+                                    CompletableFuture<Boolean> own = retry.get();
+                                    if (own != null)
+                                    {
+                                        own.cancel(false);
+                                    }
+                                }
+                            });
+        return result;
+    }
+
+    private boolean runPollTransaction(String transactionId)
+    {
+        return runRequest(ENDPOINT_POLLTRANSACTION, Collections.singletonMap(TRANSACTION_ID, transactionId), Collections.emptyMap(), false, GET,
+                          this::parsePollResponse, error -> false);
+    }
+
+    private CompletableFuture<Boolean> sendPollTransaction(String transactionId)
+    {
+        return runRequestNonBlocking(ENDPOINT_POLLTRANSACTION, Collections.singletonMap(TRANSACTION_ID, transactionId), Collections.emptyMap(),
+                                     false, GET, this::parsePollResponse, error -> false);
+    }
+
+    /**
+     * Variant of {@link #runPollTransaction(String)} for a request that is shared by concurrent polls.
+     *
+     * @return the status value or null if the request failed, so that the polls which joined it can send their own
+     */
+    private Boolean runSharedPollTransaction(String transactionId)
+    {
+        return runRequest(ENDPOINT_POLLTRANSACTION, Collections.singletonMap(TRANSACTION_ID, transactionId), Collections.emptyMap(), false, GET,
+                          this::parseSharedPollResponse, error -> null);
+    }
+
+    private CompletableFuture<Boolean> sendSharedPollTransaction(String transactionId)
+    {
+        return runRequestNonBlocking(ENDPOINT_POLLTRANSACTION, Collections.singletonMap(TRANSACTION_ID, transactionId), Collections.emptyMap(),
+                                     false, GET, this::parseSharedPollResponse, error -> null);
+    }
+
+    private Boolean parseSharedPollResponse(JsonBody response)
+    {
+        EMResponse EMResponse = this.parser.parseEMResponse(response, false);
+        return EMResponse != null && EMResponse.error == null ? EMResponse.value : null;
+    }
+
+    private EMResponse parseEMResponse(JsonBody response)
+    {
+        return parser.parseEMResponse(response, configuration.keepRawResponses);
+    }
+
+    private RolloutInfo parseRolloutInfo(JsonBody response)
+    {
+        return parser.parseRolloutInfo(response, configuration.keepRawResponses);
+    }
+
+    /**
+     * @return the text of the response or null if there is none. An error of the connection is reported by the request.
+     */
+    private static String readText(JsonBody response)
+    {
+        try
+        {
+            return response != null ? response.text() : null;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    private boolean parsePollResponse(JsonBody response)
+    {
+        EMResponse EMResponse = this.parser.parseEMResponse(response, false);
+        return EMResponse != null && EMResponse.value;
+    }
+
+    /**
+     * Poll for the status of the given transaction ID in the given interval until it is accepted or the timeout is reached.
+     * If the transaction is accepted, it is finalized with a request to /validate/check and the response of that request
+     * is passed to the callback. The polling does not block any thread, so it can be used for any number of transactions.
+     *
+     * @param transactionId transaction ID to poll for
+     * @param username      username to finalize the transaction for
+     * @param intervalMs    time between the polls in milliseconds
+     * @param timeoutMs     time in milliseconds after which the polling is stopped
+     * @param callback      callback that receives the response of the finalizing request
+     * @return future of the response of the finalizing request, completed with null if the timeout was reached.
+     * Cancelling the future stops the polling.
+     */
+    public CompletableFuture<EMResponse> asyncPollTransaction(String transactionId, String username, long intervalMs, long timeoutMs,
+                                                              IPIPollTransactionCallback callback)
+    {
+        Objects.requireNonNull(transactionId, "TransactionID is required!");
+        Objects.requireNonNull(callback, "Callback is required!");
+
+        return new TransactionPoller(this, scheduler, transactionId, username, intervalMs, timeoutMs, callback).start();
     }
 
     /**
@@ -321,8 +668,7 @@ public class EduMFA implements Closeable
             error("Cannot retrieve auth token without service account!");
             return null;
         }
-        String response = runRequestAsync(ENDPOINT_AUTH, serviceAccountParam(), Collections.emptyMap(), false, POST);
-        return parser.extractAuthToken(response);
+        return runRequest(ENDPOINT_AUTH, serviceAccountParam(), Collections.emptyMap(), false, POST, parser::extractAuthToken, error -> null);
     }
 
     Map<String, String> serviceAccountParam()
@@ -342,6 +688,15 @@ public class EduMFA implements Closeable
         return authTokenParams;
     }
 
+    /**
+     * @return key of the service account and its realm for the auth token cache
+     */
+    String serviceAccountKey()
+    {
+        Map<String, String> params = serviceAccountParam();
+        return params.get(USERNAME) + "@" + params.getOrDefault(REALM, "");
+    }
+
     /**
      * Retrieve information about the users tokens. This requires a service account to be set.
      *
@@ -357,8 +712,59 @@ public class EduMFA implements Closeable
             return null;
         }
 
-        String response = runRequestAsync(ENDPOINT_TOKEN, Collections.singletonMap(USER, username), new LinkedHashMap<>(), true, GET);
-        return parser.parseTokenInfoList(response);
+        return runRequest(ENDPOINT_TOKEN, Collections.singletonMap(USER, username), new LinkedHashMap<>(), true, GET, parser::parseTokenInfoList,
+                          error -> null);
+    }
+
+    /**
+     * Retrieve information about the users tokens and pass them to the consumer one by one while the response is read.
+     * Unlike {@link #getTokenInfo(String)}, the tokens are not collected into a list first, which is preferable for
+     * users or realms with many tokens. This requires a service account to be set.
+     *
+     * @param username username to get info for
+     * @param consumer receives the info of each token
+     * @return true if the response could be read, false if failure. If the response cannot be read completely, the
+     * consumer has received the tokens before the error.
+     */
+    public boolean forEachTokenInfo(String username, Consumer<TokenInfo> consumer)
+    {
+        Objects.requireNonNull(username);
+        Objects.requireNonNull(consumer);
+        if (!serviceAccountAvailable())
+        {
+            error("Cannot retrieve token info without service account!");
+            return false;
+        }
+
+        // The consumer is called on the calling thread, so the response is read before it is parsed
+        String response = runRequest(ENDPOINT_TOKEN, Collections.singletonMap(USER, username), new LinkedHashMap<>(), true, GET,
+                                     EduMFA::readText, error -> null);
+        if (response == null || response.isEmpty())
+        {
+            return false;
+        }
+        JSONParser.TokenInfoIterator tokens = parser.tokenInfoIterator(JsonBody.of(response));
+        tokens.forEachRemaining(consumer);
+        return !tokens.failed();
+    }
+
+    /**
+     * Non-blocking variant of {@link #getTokenInfo(String)}. This requires a service account to be set.
+     *
+     * @param username username to get info for
+     * @return future of the possibly empty list of TokenInfo, which is completed with null if failure
+     */
+    public CompletableFuture<List<TokenInfo>> getTokenInfoAsync(String username)
+    {
+        Objects.requireNonNull(username);
+        if (!serviceAccountAvailable())
+        {
+            error("Cannot retrieve token info without service account!");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return runRequestNonBlocking(ENDPOINT_TOKEN, Collections.singletonMap(USER, username), new LinkedHashMap<>(), true, GET,
+                                     parser::parseTokenInfoList, error -> null);
     }
 
     /**
@@ -377,14 +783,36 @@ public class EduMFA implements Closeable
             return null;
         }
 
+        return runRequest(ENDPOINT_TOKEN_INIT, tokenRolloutParams(username, typeToEnroll), new LinkedHashMap<>(), true, POST,
+                          this::parseRolloutInfo, RolloutInfo::fromError);
+    }
+
+    private Map<String, String> tokenRolloutParams(String username, String typeToEnroll)
+    {
         Map<String, String> params = new LinkedHashMap<>();
         params.put(USER, username);
         params.put(TYPE, typeToEnroll);
         params.put(GENKEY, "1"); // Let the server generate the secret
+        return params;
+    }
 
-        String response = runRequestAsync(ENDPOINT_TOKEN_INIT, params, new LinkedHashMap<>(), true, POST);
+    /**
+     * Non-blocking variant of {@link #tokenRollout(String, String)}. This requires a service account to be set.
+     *
+     * @param username     username
+     * @param typeToEnroll token type to enroll
+     * @return future of the RolloutInfo which contains all info for the token, completed with null if error
+     */
+    public CompletableFuture<RolloutInfo> tokenRolloutAsync(String username, String typeToEnroll)
+    {
+        if (!serviceAccountAvailable())
+        {
+            error("Cannot do rollout without service account!");
+            return CompletableFuture.completedFuture(null);
+        }
 
-        return parser.parseRolloutInfo(response);
+        return runRequestNonBlocking(ENDPOINT_TOKEN_INIT, tokenRolloutParams(username, typeToEnroll), new LinkedHashMap<>(), true, POST,
+                                     this::parseRolloutInfo, RolloutInfo::fromError);
     }
 
     /**
@@ -409,9 +837,7 @@ public class EduMFA implements Closeable
         params.put(TYPE, typeToEnroll);
         params.put(OTPKEY, otpKey); // Import the secret
 
-        String response = runRequestAsync(ENDPOINT_TOKEN_INIT, params, new LinkedHashMap<>(), true, POST);
-
-        return parser.parseRolloutInfo(response);
+        return runRequest(ENDPOINT_TOKEN_INIT, params, new LinkedHashMap<>(), true, POST, this::parseRolloutInfo, RolloutInfo::fromError);
     }
 
     private void appendRealm(Map<String, String> params)
@@ -422,108 +848,427 @@ public class EduMFA implements Closeable
         }
     }
 
+    /**
+     * Run a request and parse the response. If the client itself could not process the request, the error is passed
+     * to onError instead, so that it can be returned to the caller in the matching type.
+     *
+     * @param parse   function to parse the response of the server while it is read, which receives null if there is no response
+     * @param onError function to create the result for an error of the client
+     * @return the parsed response or the result of onError
+     * @see EduMFA#runRequestAsync(String, Map, Map, boolean, String, Function)
+     */
+    private <T> T runRequest(String path, Map<String, String> params, Map<String, String> headers, boolean authTokenRequired, String method,
+                             Function<JsonBody, T> parse, Function<EMError, T> onError)
+    {
+        try
+        {
+            return runRequestAsync(path, params, headers, authTokenRequired, method, parse);
+        }
+        catch (EMClientException e)
+        {
+            error(e.getMessage());
+            return onError.apply(e.error());
+        }
+    }
+
     /**
      * Run a request in a thread of the thread pool. Then join that thread to the one that was calling this method.
      * If the server takes longer to answer a request, the other requests do not have to wait.
+     * If direct execution is enabled, the request is executed on the calling thread instead.
      *
      * @param path              path to the endpoint of the edumfa server
      * @param params            request parameters
      * @param headers           request headers
      * @param authTokenRequired whether an auth token should be acquired prior to the request
      * @param method            http request method
-     * @return response of the server as string or null
+     * @param parse             function to parse the response of the server while it is read
+     * @return parsed response of the server
+     * @throws EMClientException if the thread pool or the lane is saturated, the deadline of the request is reached or the calling
+     *                           thread is interrupted
      */
-    private String runRequestAsync(String path, Map<String, String> params, Map<String, String> headers, boolean authTokenRequired, String method)
+    private <T> T runRequestAsync(String path, Map<String, String> params, Map<String, String> headers, boolean authTokenRequired, String method,
+                                  Function<JsonBody, T> parse) throws EMClientException
     {
-        Callable<String> callable = new AsyncRequestCallable(this, endpoint, path, params, headers, authTokenRequired, method);
-        Future<String> future = threadPool.submit(callable);
-        String response = null;
+        RequestContext context = newRequestContext(path, params);
+        AsyncRequestCallable<T> callable = new AsyncRequestCallable<>(this, endpoint, path, params, headers, authTokenRequired, method, context,
+                                                                      parse);
+        acquireTenant(context);
         try
         {
-            response = future.get();
+            // Wait for the lane on the calling thread, so that a busy lane does not occupy the threads of the pool
+            Bulkhead bulkhead = bulkhead(path);
+            bulkhead.acquireBlocking(context);
+            try
+            {
+                if (configuration.directExecution)
+                {
+                    // The caller is already running on a worker thread, so do not hand the request over to the thread pool
+                    return callable.callDirect();
+                }
+                return submit(callable, path, context);
+            }
+            finally
+            {
+                bulkhead.release();
+            }
         }
-        catch (InterruptedException | ExecutionException e)
+        finally
         {
-            log("runRequestAsync: " + e.getLocalizedMessage());
+            releaseTenant(context);
         }
-        return response;
     }
 
-    /**
-     * @return list of endpoints for which the response is not printed
-     */
-    public List<String> logExcludedEndpoints()
+    private <T> T submit(AsyncRequestCallable<T> callable, String path, RequestContext context) throws EMClientException
     {
-        return this.logExcludedEndpoints;
+        PriorityTaskQueue.Priority priority = configuration.prioritizeRequests
+                                              ? PriorityTaskQueue.Priority.of(EMLane.of(path)) : PriorityTaskQueue.Priority.INTERACTIVE;
+        String tenant = configuration.fairScheduling ? context.tenant() : "";
+        PriorityTaskQueue.Task<T> future;
+        if (loadShedder != null && threadPool instanceof ThreadPoolExecutor)
+        {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) threadPool;
+            loadShedder.admit(context, pool.getQueue().size(), pool.getMaximumPoolSize());
+            future = new PriorityTaskQueue.Task<>(() -> callTimed(callable), context, priority, tenant, metrics);
+        }
+        else
+        {
+            future = new PriorityTaskQueue.Task<>(callable, context, priority, tenant, metrics);
+        }
+        try
+        {
+            threadPool.execute(future);
+        }
+        catch (RejectedExecutionException e)
+        {
+            throw new EMClientException(EMError.CLIENT_SATURATED, "The request to " + path + " was rejected because the client is saturated.");
+        }
+        try
+        {
+            return future.get(context.remainingMs(), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            future.cancel(true);
+            context.cancel();
+            removeQueued(future);
+            throw context.timeout();
+        }
+        catch (ExecutionException e)
+        {
+            EMClientException clientException = EMClientException.unwrap(e);
+            if (clientException != null)
+            {
+                throw clientException;
+            }
+            log("runRequestAsync: " + e.getLocalizedMessage());
+            return callable.noResponse();
+        }
+        catch (InterruptedException e)
+        {
+            // Nobody is waiting for the response anymore, so stop the task and the http request
+            future.cancel(true);
+            context.cancel();
+            removeQueued(future);
+            Thread.currentThread().interrupt();
+            throw context.cancelledException();
+        }
     }
 
     /**
-     * @param list list of endpoints for which the response should not be printed
+     * Remove the task from the queue of the thread pool if it has not started yet, so that it does not take the place
+     * of a request that somebody still waits for.
      */
-    public void logExcludedEndpoints(List<String> list)
-    {
-        this.logExcludedEndpoints = list;
-    }
-
-    public boolean serviceAccountAvailable()
-    {
-        return configuration.serviceAccountName != null && !configuration.serviceAccountName.isEmpty() && configuration.serviceAccountPass != null &&
-               !configuration.serviceAccountPass.isEmpty();
-    }
-
-    EMConfig configuration()
+    private void removeQueued(Runnable task)
     {
-        return configuration;
+        if (threadPool instanceof ThreadPoolExecutor && ((ThreadPoolExecutor) threadPool).remove(task))
+        {
+            metrics.queuedRequestDropped();
+        }
     }
 
     /**
-     * Pass the message to the appropriate logger implementation.
-     *
-     * @param message message to log.
+     * Run the callable and pass the time it occupied the thread to the load shedder.
      */
-    void error(String message)
+    private <T> T callTimed(AsyncRequestCallable<T> callable) throws Exception
     {
-        if (!configuration.disableLog)
+        long start = System.nanoTime();
+        try
         {
-            if (this.log != null)
-            {
-                this.log.error(message);
-            }
-            else if (this.simpleLog != null)
-            {
-                this.simpleLog.pilog(message);
-            }
-            else
-            {
-                System.err.println(message);
-            }
+            return callable.call();
+        }
+        finally
+        {
+            loadShedder.record((System.nanoTime() - start) / 1e6);
         }
     }
 
     /**
-     * Pass the error to the appropriate logger implementation.
+     * Run a request without any thread waiting for it. The returned future is completed from the okhttp callback.
+     * If the returned future is cancelled, so is the http request.
      *
-     * @param e error to log.
+     * @param path              path to the endpoint of the edumfa server
+     * @param params            request parameters
+     * @param headers           request headers
+     * @param authTokenRequired whether an auth token should be acquired prior to the request
+     * @param method            http request method
+     * @param parse             function to parse the response of the server while it is read
+     * @param onError           function to create the result for an error of the client
+     * @return future of the parsed response or the result of onError
      */
-    void error(Throwable e)
+    private <T> CompletableFuture<T> runRequestNonBlocking(String path, Map<String, String> params, Map<String, String> headers,
+                                                           boolean authTokenRequired, String method, Function<JsonBody, T> parse,
+                                                           Function<EMError, T> onError)
     {
-        if (!configuration.disableLog)
+        RequestContext context = newRequestContext(path, params);
+        AsyncRequestCallable<T> callable = new AsyncRequestCallable<>(this, endpoint, path, params, headers, authTokenRequired, method, context,
+                                                                      parse);
+        try
+        {
+            acquireTenant(context);
+        }
+        catch (EMClientException e)
+        {
+            error(e.getMessage());
+            return CompletableFuture.completedFuture(onError.apply(e.error()));
+        }
+        Bulkhead bulkhead = bulkhead(path);
+        CompletableFuture<Void> permit = bulkhead.acquire(context);
+        CompletableFuture<T> result = permit
+                .thenCompose(granted -> callable.callAsync().whenComplete((response, t) -> bulkhead.release()))
+                .handle((response, t) ->
+                        {
+                            if (t == null)
+                            {
+                                return response;
+                            }
+                            EMClientException clientException = EMClientException.unwrap(t);
+                            if (clientException != null)
+                            {
+                                error(clientException.getMessage());
+                                return onError.apply(clientException.error());
+                            }
+                            error(t);
+                            return parse.apply(null);
+                        });
+        result.whenComplete((response, t) ->
+                            {
+                                if (result.isCancelled())
+                                {
+                                    context.cancel();
+                                    bulkhead.cancel(permit);
+                                }
+                                releaseTenant(context);
+                            });
+        return result;
+    }
+
+    /**
+     * Run the task on the executor of the okhttp callbacks, e.g. to complete a future whose dependent stages may block,
+     * which must not happen on the scheduler. If the client is closed, the task runs on the calling thread.
+     */
+    void runAsync(Runnable task)
+    {
+        try
+        {
+            endpoint.callbackExecutor().execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            task.run();
+        }
+    }
+
+    /**
+     * @return bulkhead of the lane in which requests to the given endpoint are executed
+     */
+    Bulkhead bulkhead(String path)
+    {
+        return bulkheads.get(EMLane.of(path));
+    }
+
+    /**
+     * @return context for a request that is shared by several calls, e.g. /auth, so that it is not cancelled or limited
+     * by any single one of them
+     */
+    RequestContext newSharedContext(String path)
+    {
+        return new RequestContext(path, "", configuration.requestTimeoutMs);
+    }
+
+    private RequestContext newRequestContext(String path, Map<String, String> params)
+    {
+        String tenant = callTenant.get();
+        if (tenant == null)
+        {
+            tenant = defaultTenant(params);
+        }
+        return new RequestContext(path, tenant, callTimeoutMs());
+    }
+
+    /**
+     * @return the user and realm of the request, e.g. "user@realm", or only the realm if the request is not made for a user
+     */
+    private static String defaultTenant(Map<String, String> params)
+    {
+        if (params == null)
+        {
+            return "";
+        }
+        String realm = params.getOrDefault(REALM, "");
+        String user = params.get(USER);
+        return user != null ? user + "@" + realm : realm;
+    }
+
+    /**
+     * @return timeout for the requests of the current thread, either set by withTimeout or configured in the builder
+     */
+    private long callTimeoutMs()
+    {
+        Long timeoutMs = callTimeoutMs.get();
+        return timeoutMs != null ? timeoutMs : configuration.requestTimeoutMs;
+    }
+
+    private void acquireTenant(RequestContext context) throws EMClientException
+    {
+        if (tenantLimiter != null)
         {
-            if (this.log != null)
+            tenantLimiter.acquire(context);
+        }
+    }
+
+    private void releaseTenant(RequestContext context)
+    {
+        if (tenantLimiter != null)
+        {
+            tenantLimiter.release(context.tenant());
+        }
+    }
+
+    /**
+     * Run the given calls of this client on behalf of the given tenant, e.g.
+     * {@code eduMFA.withTenant("university-a", () -> eduMFA.validateCheck(username, otp))}. With
+     * {@link Builder#fairScheduling(int)}, the tenants share the client fairly. Without a tenant, each user of the realm
+     * is a tenant of its own, as the client is usually configured for a single realm.
+     *
+     * @param tenant tenant of the calls, e.g. the realm or the organization of the user
+     * @param calls  calls to run
+     * @return the result of the calls
+     */
+    public <T> T withTenant(String tenant, Supplier<T> calls)
+    {
+        String previous = callTenant.get();
+        callTenant.set(tenant);
+        try
+        {
+            return calls.get();
+        }
+        finally
+        {
+            if (previous != null)
             {
-                this.log.error(e);
+                callTenant.set(previous);
             }
-            else if (this.simpleLog != null)
+            else
             {
-                this.simpleLog.pilog(e.getMessage());
+                callTenant.remove();
+            }
+        }
+    }
+
+    /**
+     * Run the given calls of this client with a different timeout than the one configured in the builder, e.g.
+     * {@code eduMFA.withTimeout(5000, () -> eduMFA.validateCheck(username, otp))}. The timeout applies to each request
+     * that is started by the calls, including the non-blocking variants.
+     *
+     * @param timeoutMs time in milliseconds in which each request has to complete, including the wait for a free thread
+     *                  and the retrieval of the auth token
+     * @param calls     calls to run
+     * @return the result of the calls
+     */
+    public <T> T withTimeout(long timeoutMs, Supplier<T> calls)
+    {
+        Long previous = callTimeoutMs.get();
+        callTimeoutMs.set(timeoutMs);
+        try
+        {
+            return calls.get();
+        }
+        finally
+        {
+            if (previous != null)
+            {
+                callTimeoutMs.set(previous);
             }
             else
             {
-                System.err.println(e.getLocalizedMessage());
+                callTimeoutMs.remove();
             }
         }
     }
 
+    /**
+     * @return list of endpoints for which the response is not printed
+     */
+    public List<String> logExcludedEndpoints()
+    {
+        return this.logExcludedEndpoints;
+    }
+
+    /**
+     * @param list list of endpoints for which the response should not be printed
+     */
+    public void logExcludedEndpoints(List<String> list)
+    {
+        this.logExcludedEndpoints = list;
+    }
+
+    public boolean serviceAccountAvailable()
+    {
+        return configuration.serviceAccountName != null && !configuration.serviceAccountName.isEmpty() && configuration.serviceAccountPass != null &&
+               !configuration.serviceAccountPass.isEmpty();
+    }
+
+    EMConfig configuration()
+    {
+        return configuration;
+    }
+
+    ScheduledExecutorService scheduler()
+    {
+        return scheduler;
+    }
+
+    AuthTokenCache authTokenCache()
+    {
+        return authTokenCache;
+    }
+
+    /**
+     * Pass the message to the appropriate logger implementation.
+     *
+     * @param message message to log.
+     */
+    void error(String message)
+    {
+        if (!configuration.disableLog)
+        {
+            deliver(() -> writeError(message));
+        }
+    }
+
+    /**
+     * Pass the error to the appropriate logger implementation.
+     *
+     * @param e error to log.
+     */
+    void error(Throwable e)
+    {
+        if (!configuration.disableLog)
+        {
+            deliver(() -> writeError(e));
+        }
+    }
+
     /**
      * Pass the message to the appropriate logger implementation.
      *
@@ -533,21 +1278,32 @@ public class EduMFA implements Closeable
     {
         if (!configuration.disableLog)
         {
-            if (this.log != null)
-            {
-                this.log.log(message);
-            }
-            else if (this.simpleLog != null)
-            {
-                this.simpleLog.pilog(message);
-            }
-            else
-            {
-                System.out.println(message);
-            }
+            deliver(() -> writeLog(message));
         }
     }
 
+    /**
+     * Pass the message to the appropriate logger implementation. The message is only created if logging is enabled.
+     * With asynchronous logging, the message is created on the log thread.
+     *
+     * @param message supplier of the message to log.
+     */
+    void log(Supplier<String> message)
+    {
+        if (logEnabled())
+        {
+            deliver(() -> writeLog(message.get()));
+        }
+    }
+
+    /**
+     * @return whether messages passed to log are written, so that expensive messages can be skipped otherwise
+     */
+    boolean logEnabled()
+    {
+        return !configuration.disableLog && (this.log == null || this.log.isLogEnabled());
+    }
+
     /**
      * Pass the error to the appropriate logger implementation.
      *
@@ -557,25 +1313,107 @@ public class EduMFA implements Closeable
     {
         if (!configuration.disableLog)
         {
-            if (this.log != null)
-            {
-                this.log.log(e);
-            }
-            else if (this.simpleLog != null)
-            {
-                this.simpleLog.pilog(e.getMessage());
-            }
-            else
-            {
-                System.out.println(e.getLocalizedMessage());
-            }
+            deliver(() -> writeLog(e));
+        }
+    }
+
+    private void deliver(Runnable write)
+    {
+        if (logSink != null)
+        {
+            logSink.offer(write);
+        }
+        else
+        {
+            write.run();
+        }
+    }
+
+    private void writeError(String message)
+    {
+        if (this.log != null)
+        {
+            this.log.error(message);
+        }
+        else if (this.simpleLog != null)
+        {
+            this.simpleLog.pilog(message);
+        }
+        else
+        {
+            System.err.println(message);
+        }
+    }
+
+    private void writeError(Throwable e)
+    {
+        if (this.log != null)
+        {
+            this.log.error(e);
+        }
+        else if (this.simpleLog != null)
+        {
+            this.simpleLog.pilog(e.getMessage());
+        }
+        else
+        {
+            System.err.println(e.getLocalizedMessage());
+        }
+    }
+
+    private void writeLog(String message)
+    {
+        if (this.log != null)
+        {
+            this.log.log(message);
+        }
+        else if (this.simpleLog != null)
+        {
+            this.simpleLog.pilog(message);
+        }
+        else
+        {
+            System.out.println(message);
         }
     }
 
+    private void writeLog(Throwable e)
+    {
+        if (this.log != null)
+        {
+            this.log.log(e);
+        }
+        else if (this.simpleLog != null)
+        {
+            this.simpleLog.pilog(e.getMessage());
+        }
+        else
+        {
+            System.out.println(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return counters of the client, e.g. for the monitoring of the plugin
+     */
+    public EMMetrics metrics()
+    {
+        return metrics;
+    }
+
     @Override
     public void close() throws IOException
     {
-        this.threadPool.shutdown();
+        // An executor that was passed to the builder is owned by the caller
+        if (configuration.executor == null)
+        {
+            this.threadPool.shutdown();
+        }
+        this.scheduler.shutdownNow();
+        if (logSink != null)
+        {
+            logSink.close(1000);
+        }
     }
 
     /**
@@ -587,12 +1425,32 @@ public class EduMFA implements Closeable
      */
     public static Builder newBuilder(String serverURL, String userAgent)
     {
-        return new Builder(serverURL, userAgent);
+        return new Builder(Collections.singletonList(serverURL), userAgent);
+    }
+
+    /**
+     * Get a new Builder to create a edumfa instance that sends its requests to multiple servers. Each request is sent to the
+     * server with the lowest expected latency. If a server cannot be reached, the request is sent to the next one.
+     *
+     * @param serverURLs urls of the edumfa servers.
+     * @param userAgent  userAgent of the plugin using the java-client.
+     * @return Builder
+     */
+    public static Builder newBuilder(List<String> serverURLs, String userAgent)
+    {
+        if (serverURLs == null || serverURLs.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one server url is required!");
+        }
+        return new Builder(new ArrayList<>(serverURLs), userAgent);
     }
 
     public static class Builder
     {
-        private final String serverURL;
+        // Default limit of concurrent http requests if the requests are not limited by the threads of the pool
+        private static final int UNPOOLED_MAX_REQUESTS = 256;
+
+        private final List<String> serverURLs;
         private final String userAgent;
         private String realm = "";
         private boolean doSSLVerify = true;
@@ -603,15 +1461,53 @@ public class EduMFA implements Closeable
         private boolean disableLog = false;
         private IPISimpleLogger simpleLogBridge = null;
         private int httpTimeoutMs = 30000;
+        private boolean directExecution = false;
+        private boolean virtualThreads = false;
+        private boolean cacheAuthToken = true;
+        private ExecutorService executor = null;
+        private int threadPoolCoreSize = 20;
+        private int threadPoolMaxSize = 20;
+        private int threadPoolQueueSize = 1000;
+        private RejectedExecutionHandler rejectionHandler = new ThreadPoolExecutor.AbortPolicy();
+        // These are sized according to the thread pool unless they are set explicitly
+        private int maxRequests = 0;
+        private int maxRequestsPerHost = 0;
+        private int maxIdleConnections = 0;
+        private long keepAliveDurationMs = 5 * 60 * 1000;
+        private int asyncLogCapacity = 0;
+        private int requestTimeoutMs = 0;
+        private long healthCheckIntervalMs = 10000;
+        private int circuitBreakerFailureRatePercent = 0;
+        private int circuitBreakerMinimumRequests = 10;
+        private long circuitBreakerOpenDurationMs = 30000;
+        private int hedgingPercentile = 0;
+        private int maxRetries = 0;
+        private long retryInitialBackoffMs = 100;
+        private long retryMaxBackoffMs = 2000;
+        private boolean adaptiveConcurrency = false;
+        private int concurrencyInitialLimit = 20;
+        private int concurrencyMaxLimit = 64;
+        private long concurrencyMaxQueueWaitMs = 100;
+        private final Map<EMLane, Integer> laneMaxConcurrent = new EnumMap<>(EMLane.class);
+        private final Map<EMLane, Integer> laneMaxQueued = new EnumMap<>(EMLane.class);
+        private boolean prioritizeRequests = false;
+        private long priorityMaxWaitMs = 1000;
+        private boolean fairScheduling = false;
+        private int tenantMaxInFlight = 0;
+        private final Map<String, Integer> tenantWeights = new HashMap<>();
+        private long loadSheddingMaxQueueWaitMs = 0;
+        private boolean coalescePolls = false;
+        private long pollResultReuseMs = 0;
+        private boolean keepRawResponses = true;
 
         /**
-         * @param serverURL the server URL is mandatory to communicate with edumfa.
-         * @param userAgent the user agent that should be used in the http requests. Should refer to the plugin, something like "edumfa-Keycloak"
+         * @param serverURLs the server URLs are mandatory to communicate with edumfa.
+         * @param userAgent  the user agent that should be used in the http requests. Should refer to the plugin, something like "edumfa-Keycloak"
          */
-        private Builder(String serverURL, String userAgent)
+        private Builder(List<String> serverURLs, String userAgent)
         {
             this.userAgent = userAgent;
-            this.serverURL = serverURL;
+            this.serverURLs = serverURLs;
         }
 
         /**
@@ -713,9 +1609,402 @@ public class EduMFA implements Closeable
             return this;
         }
 
+        /**
+         * Disable the cache for the auth token of the service account. Every request that requires an auth token will call /auth first.
+         *
+         * @return Builder
+         */
+        public Builder disableAuthTokenCache()
+        {
+            this.cacheAuthToken = false;
+            return this;
+        }
+
+        /**
+         * Execute the requests of the synchronous methods (validateCheck, getTokenInfo...) directly on the calling thread
+         * instead of handing them over to the internal thread pool. This is recommended if the calling thread is already
+         * a worker thread, e.g. a servlet thread, because it saves a thread and two context switches per request.
+         * The http requests, including /auth, are executed with {@code Call.execute()} on the calling thread. The deadline
+         * of the request is applied as the timeout of the http call and interrupting the calling thread cancels it.
+         *
+         * @return Builder
+         */
+        public Builder directExecution()
+        {
+            this.directExecution = true;
+            return this;
+        }
+
+        /**
+         * Run each request of the synchronous methods on its own virtual thread instead of the fixed size thread pool.
+         * This requires Java 21 or later. On older versions, the thread pool is used and a message is logged.
+         * The number of threads does not limit the concurrent requests anymore, so {@link Builder#maxRequests(int)}
+         * defaults to 256.
+         *
+         * @return Builder
+         */
+        public Builder virtualThreads()
+        {
+            this.virtualThreads = true;
+            return this;
+        }
+
+        /**
+         * Set the executor that runs the requests of the synchronous methods instead of the internal thread pool.
+         * The executor is not shut down when the edumfa instance is closed.
+         *
+         * @param executor executor for the requests
+         * @return Builder
+         */
+        public Builder executor(ExecutorService executor)
+        {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Set the size of the internal thread pool. The default is 20 threads with a queue for 1000 requests.
+         * If the pool and the queue are full, requests are rejected according to {@link Builder#rejectionHandler(RejectedExecutionHandler)}.
+         *
+         * @param coreSize  number of threads that are kept in the pool
+         * @param maxSize   maximum number of threads, additional threads are only started if the queue is full
+         * @param queueSize number of requests that can wait for a thread
+         * @return Builder
+         */
+        public Builder threadPool(int coreSize, int maxSize, int queueSize)
+        {
+            this.threadPoolCoreSize = coreSize;
+            this.threadPoolMaxSize = maxSize;
+            this.threadPoolQueueSize = queueSize;
+            return this;
+        }
+
+        /**
+         * Set the handler for requests that can not be taken by the internal thread pool. By default, these requests are rejected
+         * and the methods return an error with the code {@link EMError#CLIENT_SATURATED}.
+         *
+         * @param rejectionHandler handler for rejected requests
+         * @return Builder
+         */
+        public Builder rejectionHandler(RejectedExecutionHandler rejectionHandler)
+        {
+            this.rejectionHandler = rejectionHandler;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of requests that are executed concurrently by the http client.
+         * The default is the size of the thread pool, but at least 64. If the synchronous methods do not run on the thread
+         * pool, i.e. with {@link Builder#virtualThreads()}, {@link Builder#executor(ExecutorService)} or
+         * {@link Builder#directExecution()}, the default is 256. Further requests wait in the queue of the http client.
+         *
+         * @param maxRequests maximum number of concurrent requests
+         * @return Builder
+         */
+        public Builder maxRequests(int maxRequests)
+        {
+            this.maxRequests = maxRequests;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of requests that are executed concurrently to the edumfa server.
+         * The default is {@link Builder#maxRequests(int)}, so that the requests of the non-blocking methods, which do
+         * not use the thread pool, are not limited further if there is only one server.
+         *
+         * @param maxRequestsPerHost maximum number of concurrent requests to the server
+         * @return Builder
+         */
+        public Builder maxRequestsPerHost(int maxRequestsPerHost)
+        {
+            this.maxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        /**
+         * Configure the connection pool of the http client. By default, as many idle connections as there can be concurrent
+         * requests to the server, see {@link Builder#maxRequestsPerHost(int)}, are kept alive for 5 minutes.
+         *
+         * @param maxIdleConnections  maximum number of idle connections to keep
+         * @param keepAliveDurationMs time in milliseconds after which an idle connection is closed
+         * @return Builder
+         */
+        public Builder connectionPool(int maxIdleConnections, long keepAliveDurationMs)
+        {
+            this.maxIdleConnections = maxIdleConnections;
+            this.keepAliveDurationMs = keepAliveDurationMs;
+            return this;
+        }
+
+        /**
+         * Set the time in which a request of the client has to complete. This includes the wait for a free thread of the
+         * thread pool and the retrieval of the auth token. If the time is exceeded, the result contains an error with the
+         * code {@link EMError#CLIENT_TIMEOUT}. By default, the http timeout is used. It can be changed for single calls
+         * with {@link EduMFA#withTimeout(long, Supplier)}.
+         *
+         * @param requestTimeoutMs timeout in milliseconds
+         * @return Builder
+         */
+        public Builder requestTimeoutMs(int requestTimeoutMs)
+        {
+            this.requestTimeoutMs = requestTimeoutMs;
+            return this;
+        }
+
+        /**
+         * Set the interval in which the servers are checked if multiple servers are configured. A server that could not be
+         * reached is only used again if no other server is left or the check reached it again.
+         *
+         * @param healthCheckIntervalMs interval in milliseconds, 0 to disable the checks
+         * @return Builder
+         */
+        public Builder healthCheckIntervalMs(long healthCheckIntervalMs)
+        {
+            this.healthCheckIntervalMs = healthCheckIntervalMs;
+            return this;
+        }
+
+        /**
+         * Configure the circuit breaker of each server. If the given percentage of the recent requests to a server failed,
+         * no requests are sent to it for the open duration. Failures are errors of the connection, timeouts and server errors.
+         * If the circuits of all servers are open, the requests fail immediately with {@link EMError#SERVER_UNAVAILABLE}, so
+         * that the plugin does not have to wait for timeouts during an outage. Responses that ask to retry later (429 and 503)
+         * are handled by the throttling and do not count as failures. The circuit breaker is disabled unless
+         * it is configured with this method. A failure rate of 0 disables it.
+         *
+         * @param failureRatePercent percentage of failed requests that opens the circuit
+         * @param minimumRequests    number of recent requests that are required to open the circuit
+         * @param openDurationMs     time in milliseconds until a trial request is sent to the server again
+         * @return Builder
+         */
+        public Builder circuitBreaker(int failureRatePercent, int minimumRequests, long openDurationMs)
+        {
+            this.circuitBreakerFailureRatePercent = failureRatePercent;
+            this.circuitBreakerMinimumRequests = minimumRequests;
+            this.circuitBreakerOpenDurationMs = openDurationMs;
+            return this;
+        }
+
+        /**
+         * Always send the requests to the servers, even if many of the recent requests failed.
+         *
+         * @return Builder
+         */
+        public Builder disableCircuitBreaker()
+        {
+            this.circuitBreakerFailureRatePercent = 0;
+            return this;
+        }
+
+        /**
+         * Send a second request for pollTransaction and getTokenInfo if the first one did not receive a response within the
+         * given percentile of the recent response times, e.g. 95. If multiple servers are configured, the second request is
+         * sent to another server. The first response is used and the other request is cancelled. Other requests are never
+         * sent twice, because they are not idempotent. Hedging only applies to requests that do not use direct execution.
+         *
+         * @param percentile percentile of the response times after which the second request is sent, between 1 and 99
+         * @return Builder
+         */
+        public Builder hedging(int percentile)
+        {
+            this.hedgingPercentile = percentile;
+            return this;
+        }
+
+        /**
+         * Retry requests that failed because of the connection. The delay before each retry doubles, starting with the
+         * initial backoff, and is randomized so that multiple clients do not retry at the same time. Retries stop at the
+         * deadline of the request. Requests that only read data, like pollTransaction, getTokenInfo and /auth, are retried
+         * after any error of the connection. Other requests, like validateCheck, are only retried if the connection could
+         * not be established, so that they are never processed twice by the server. By default, requests are not retried.
+         *
+         * @param maxRetries       maximum number of retries per request
+         * @param initialBackoffMs delay in milliseconds before the first retry
+         * @param maxBackoffMs     maximum delay in milliseconds between retries
+         * @return Builder
+         */
+        public Builder retry(int maxRetries, long initialBackoffMs, long maxBackoffMs)
+        {
+            this.maxRetries = maxRetries;
+            this.retryInitialBackoffMs = initialBackoffMs;
+            this.retryMaxBackoffMs = maxBackoffMs;
+            return this;
+        }
+
+        /**
+         * Let concurrent calls of {@link EduMFA#pollTransaction(String)} for the same transaction ID, e.g. from several
+         * browser tabs, share one request and its result. The result is also returned to polls that are made within
+         * resultReuseMs after the request completed, so a poll may return a status that is up to resultReuseMs old. If the
+         * shared request fails, the polls that joined it send their own request. By default, each poll sends a request.
+         *
+         * @param resultReuseMs time in milliseconds for which the result is reused, 0 to share only requests in flight
+         * @return Builder
+         */
+        public Builder coalescePolls(long resultReuseMs)
+        {
+            this.coalescePolls = true;
+            this.pollResultReuseMs = resultReuseMs;
+            return this;
+        }
+
+        /**
+         * Do not keep the text of the responses in {@link EMResponse#rawMessage} and {@link RolloutInfo#raw}, which are
+         * left empty then, as is the result of {@link EMResponse#toString()}. The responses are parsed while they are read
+         * from the connection, instead of being read into a string first. If the responses are logged, they are still read
+         * as a whole. The responses of pollTransaction and /auth are parsed from the connection regardless of this setting.
+         *
+         * @return Builder
+         */
+        public Builder disableRawResponses()
+        {
+            this.keepRawResponses = false;
+            return this;
+        }
+
+        /**
+         * Reject a request at once with {@link EMError#CLIENT_OVERLOADED} if it would wait longer than maxQueueWaitMs or
+         * beyond its deadline for a thread of the internal thread pool, instead of letting it wait behind the queued
+         * requests. The wait is predicted from the number of queued requests and the average time a request occupies a
+         * thread. The number of rejected requests is available from {@link EduMFA#metrics()}. This does not apply to the
+         * non-blocking methods or to an {@link Builder#executor(ExecutorService)} that is not a ThreadPoolExecutor.
+         *
+         * @param maxQueueWaitMs maximum predicted time in milliseconds that a request may wait for a thread
+         * @return Builder
+         */
+        public Builder loadShedding(long maxQueueWaitMs)
+        {
+            this.loadSheddingMaxQueueWaitMs = maxQueueWaitMs;
+            return this;
+        }
+
+        /**
+         * Share the client fairly between the tenants, e.g. the realms of a deployment that serves several organizations.
+         * The tenant of a call is set with {@link EduMFA#withTenant(String, Supplier)}, otherwise it is the user and realm
+         * of the request, e.g. "user@realm", or the realm for requests without a user. The requests that wait for a thread
+         * of the internal thread pool are queued per tenant and the tenants take turns, so a login spike of one tenant does
+         * not delay the others. Calls of a tenant that already has maxInFlight calls running or waiting are rejected with
+         * {@link EMError#CLIENT_SATURATED}.
+         *
+         * @param maxInFlight maximum number of calls per tenant, 0 for no limit
+         * @return Builder
+         */
+        public Builder fairScheduling(int maxInFlight)
+        {
+            this.fairScheduling = true;
+            this.tenantMaxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Give a tenant a larger share of the client than the others, see {@link Builder#fairScheduling(int)}.
+         *
+         * @param tenant tenant
+         * @param weight number of requests of the tenant that are served per turn, the default is 1
+         * @return Builder
+         */
+        public Builder tenantWeight(String tenant, int weight)
+        {
+            this.tenantWeights.put(tenant, weight);
+            return this;
+        }
+
+        /**
+         * Serve the requests that wait for a thread of the internal thread pool by their priority instead of in the order
+         * they were submitted: first the authentication of users, then the polling of transactions and then the
+         * administration of tokens. A request that waited longer than maxWaitMs is served next regardless of its priority,
+         * so that the background requests keep moving. This does not apply to an {@link Builder#executor(ExecutorService)}
+         * or to virtual threads.
+         *
+         * @param maxWaitMs time in milliseconds after which a waiting request is served regardless of its priority
+         * @return Builder
+         */
+        public Builder prioritizeRequests(long maxWaitMs)
+        {
+            this.prioritizeRequests = true;
+            this.priorityMaxWaitMs = maxWaitMs;
+            return this;
+        }
+
+        /**
+         * Run the calls of the given lane in a bulkhead: at most maxConcurrent calls of the lane run at the same time and
+         * at most maxQueued calls wait for one of them to finish, until their deadline. Further calls are rejected with
+         * {@link EMError#CLIENT_SATURATED}. Calls of the other lanes are not affected, e.g. a bulk enrollment in the
+         * {@link EMLane#ADMIN} lane can not use up the threads that are needed to authenticate users. The load of each
+         * lane is available from {@link EduMFA#metrics()}. By default, the lanes are not limited.
+         *
+         * @param lane          lane to limit
+         * @param maxConcurrent maximum number of concurrent calls of the lane
+         * @param maxQueued     maximum number of calls of the lane that wait
+         * @return Builder
+         */
+        public Builder bulkhead(EMLane lane, int maxConcurrent, int maxQueued)
+        {
+            this.laneMaxConcurrent.put(lane, maxConcurrent);
+            this.laneMaxQueued.put(lane, maxQueued);
+            return this;
+        }
+
+        /**
+         * Limit the number of concurrent requests to the servers adaptively. The limit grows while the servers respond as
+         * fast as usual and shrinks if they become slower or requests fail. Requests above the limit wait up to the given
+         * time for another request to finish, otherwise they fail with {@link EMError#CLIENT_OVERLOADED}. The current limit
+         * is available from {@link EduMFA#metrics()}.
+         *
+         * @param initialLimit   limit of concurrent requests at the start
+         * @param maxLimit       upper bound of the limit, also the number of requests that can wait
+         * @param maxQueueWaitMs time in milliseconds a request may wait for the limit
+         * @return Builder
+         */
+        public Builder adaptiveConcurrency(int initialLimit, int maxLimit, long maxQueueWaitMs)
+        {
+            this.adaptiveConcurrency = true;
+            this.concurrencyInitialLimit = initialLimit;
+            this.concurrencyMaxLimit = maxLimit;
+            this.concurrencyMaxQueueWaitMs = maxQueueWaitMs;
+            return this;
+        }
+
+        /**
+         * Write the log messages on a background thread instead of the thread that handles the request, so that a slow logger
+         * does not delay the authentication. Up to capacity messages are buffered, further messages are discarded until the
+         * logger caught up. The number of discarded messages is available from {@link EduMFA#metrics()}.
+         *
+         * @param capacity number of log messages to buffer
+         * @return Builder
+         */
+        public Builder asyncLogging(int capacity)
+        {
+            this.asyncLogCapacity = capacity;
+            return this;
+        }
+
         public EduMFA build()
         {
-            EMConfig configuration = new EMConfig(serverURL, userAgent);
+            EMConfig configuration = new EMConfig(serverURLs.get(0), userAgent);
+            configuration.serverURLs = serverURLs;
+            configuration.healthCheckIntervalMs = healthCheckIntervalMs;
+            configuration.circuitBreakerFailureRatePercent = circuitBreakerFailureRatePercent;
+            configuration.circuitBreakerMinimumRequests = circuitBreakerMinimumRequests;
+            configuration.circuitBreakerOpenDurationMs = circuitBreakerOpenDurationMs;
+            configuration.hedgingPercentile = hedgingPercentile;
+            configuration.maxRetries = maxRetries;
+            configuration.retryInitialBackoffMs = Math.max(1, retryInitialBackoffMs);
+            configuration.retryMaxBackoffMs = Math.max(configuration.retryInitialBackoffMs, retryMaxBackoffMs);
+            configuration.adaptiveConcurrency = adaptiveConcurrency;
+            configuration.concurrencyInitialLimit = concurrencyInitialLimit;
+            configuration.concurrencyMaxLimit = concurrencyMaxLimit;
+            configuration.concurrencyMaxQueueWaitMs = concurrencyMaxQueueWaitMs;
+            configuration.laneMaxConcurrent.putAll(laneMaxConcurrent);
+            configuration.laneMaxQueued.putAll(laneMaxQueued);
+            configuration.prioritizeRequests = prioritizeRequests;
+            configuration.priorityMaxWaitMs = priorityMaxWaitMs;
+            configuration.fairScheduling = fairScheduling;
+            configuration.tenantMaxInFlight = tenantMaxInFlight;
+            configuration.tenantWeights.putAll(tenantWeights);
+            configuration.loadSheddingMaxQueueWaitMs = loadSheddingMaxQueueWaitMs;
+            configuration.coalescePolls = coalescePolls;
+            configuration.pollResultReuseMs = pollResultReuseMs;
+            configuration.keepRawResponses = keepRawResponses;
             configuration.realm = realm;
             configuration.doSSLVerify = doSSLVerify;
             configuration.serviceAccountName = serviceAccountName;
@@ -723,6 +2012,23 @@ public class EduMFA implements Closeable
             configuration.serviceAccountRealm = serviceAccountRealm;
             configuration.disableLog = disableLog;
             configuration.httpTimeoutMs = httpTimeoutMs;
+            configuration.directExecution = directExecution;
+            configuration.virtualThreads = virtualThreads;
+            configuration.cacheAuthToken = cacheAuthToken;
+            configuration.executor = executor;
+            configuration.threadPoolCoreSize = threadPoolCoreSize;
+            configuration.threadPoolMaxSize = threadPoolMaxSize;
+            configuration.threadPoolQueueSize = threadPoolQueueSize;
+            configuration.rejectionHandler = rejectionHandler;
+            // The size of the pool only limits the requests of the synchronous methods if they actually run on the pool
+            boolean pooled = !virtualThreads && executor == null && !directExecution;
+            configuration.maxRequests = maxRequests > 0 ? maxRequests : pooled ? Math.max(64, threadPoolMaxSize) : UNPOOLED_MAX_REQUESTS;
+            // The non-blocking methods do not use the pool at all, so each request may go to the same server
+            configuration.maxRequestsPerHost = maxRequestsPerHost > 0 ? maxRequestsPerHost : configuration.maxRequests;
+            configuration.maxIdleConnections = maxIdleConnections > 0 ? maxIdleConnections : configuration.maxRequestsPerHost;
+            configuration.keepAliveDurationMs = keepAliveDurationMs;
+            configuration.asyncLogCapacity = asyncLogCapacity;
+            configuration.requestTimeoutMs = requestTimeoutMs > 0 ? requestTimeoutMs : httpTimeoutMs;
             return new EduMFA(configuration, logger, simpleLogBridge);
         }
     }
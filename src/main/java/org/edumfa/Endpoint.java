@@ -25,23 +25,48 @@ package org.edumfa;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
 import java.net.URLEncoder;
+import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
+import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.FormBody;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.Response;
+import org.edumfa.ServerPool.Server;
+import org.jetbrains.annotations.NotNull;
 
+import static org.edumfa.EMConstants.ENDPOINT_AUTH;
+import static org.edumfa.EMConstants.ENDPOINT_POLLTRANSACTION;
+import static org.edumfa.EMConstants.ENDPOINT_TOKEN;
 import static org.edumfa.EMConstants.GET;
+import static org.edumfa.EMConstants.HEADER_RETRY_AFTER;
 import static org.edumfa.EMConstants.HEADER_USER_AGENT;
 import static org.edumfa.EMConstants.POST;
 import static org.edumfa.EMConstants.WEBAUTHN_PARAMETERS;
@@ -51,9 +76,17 @@ import static org.edumfa.EMConstants.WEBAUTHN_PARAMETERS;
  */
 class Endpoint
 {
+    // Wait time if a server responds with 429 or 503 without Retry-After, and the upper limit for Retry-After
+    private static final long DEFAULT_RETRY_AFTER_MS = 1000;
+    private static final long MAX_RETRY_AFTER_MS = 10 * 60 * 1000;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
     private final EduMFA eduMFA;
     private final EMConfig EMConfig;
     private final OkHttpClient client;
+    private final ServerPool servers;
+    private final LatencyTracker latencies = new LatencyTracker();
+    private final ConcurrencyLimiter limiter;
 
     final TrustManager[] trustAllManager = new TrustManager[]{new X509TrustManager()
     {
@@ -84,6 +117,14 @@ class Endpoint
                .writeTimeout(EMConfig.httpTimeoutMs, TimeUnit.MILLISECONDS)
                .readTimeout(EMConfig.httpTimeoutMs, TimeUnit.MILLISECONDS);
 
+        // The defaults of okhttp allow only 5 concurrent requests per host, which would serialize the concurrent requests of the client
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(EMConfig.maxRequests);
+        dispatcher.setMaxRequestsPerHost(EMConfig.maxRequestsPerHost);
+        builder.dispatcher(dispatcher)
+               .connectionPool(new ConnectionPool(EMConfig.maxIdleConnections, EMConfig.keepAliveDurationMs, TimeUnit.MILLISECONDS))
+               .eventListenerFactory(ConnectPhase.FACTORY);
+
         if (!this.EMConfig.doSSLVerify)
         {
             // Trust all certs and verify every host
@@ -101,39 +142,464 @@ class Endpoint
             }
         }
         this.client = builder.build();
+
+        this.servers = new ServerPool(EMConfig);
+        this.limiter = new ConcurrencyLimiter(EMConfig, eduMFA.scheduler(), eduMFA::runAsync, eduMFA.metrics());
+        if (servers.size() > 1 && EMConfig.healthCheckIntervalMs > 0)
+        {
+            eduMFA.scheduler().scheduleWithFixedDelay(this::probeServers, EMConfig.healthCheckIntervalMs, EMConfig.healthCheckIntervalMs,
+                                                      TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return executor of the okhttp callbacks, which can run the continuations of requests without blocking the scheduler
+     */
+    Executor callbackExecutor()
+    {
+        return client.dispatcher().executorService();
     }
 
     /**
      * Add a request to the okhttp queue. The callback will be invoked upon success or failure.
+     * If the selected server cannot be reached, the request is sent to the next server. Failed requests are retried
+     * according to the retry policy. While all servers asked the client to wait, the request is delayed or fails if
+     * the wait exceeds its deadline.
+     * If hedging is enabled and the request is idempotent, a second request is sent if the first one takes longer than usual.
      *
+     * @param context  context of the call, the request is cancelled with it or when its deadline is reached
      * @param endpoint server endpoint
      * @param params   request parameters
      * @param headers  request headers
      * @param method   http request method
      * @param callback okhttp3 callback
      */
-    void sendRequestAsync(String endpoint, Map<String, String> params, Map<String, String> headers, String method,
-                          Callback callback)
+    void sendRequestAsync(RequestContext context, String endpoint, Map<String, String> params, Map<String, String> headers,
+                          String method, Callback callback)
     {
-        HttpUrl httpUrl = HttpUrl.parse(EMConfig.serverURL + endpoint);
-        if (httpUrl == null)
+        long throttledForMs = servers.throttledForMs();
+        if (throttledForMs > 0)
         {
-            eduMFA.error("Server url could not be parsed: " + (EMConfig.serverURL + endpoint));
-            // Invoke the callback to terminate the thread that called this function.
-            callback.onFailure(null, new IOException("Request could not be created because the url could not be parsed"));
+            // Wait until the servers accept requests again, unless that takes longer than the request may
+            if (throttledForMs >= context.remainingMs())
+            {
+                callback.onFailure(null, throttled(throttledForMs));
+                return;
+            }
+            try
+            {
+                eduMFA.scheduler().schedule(() -> sendRequestAsync(context, endpoint, params, headers, method, callback), throttledForMs,
+                                            TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // The client is closed
+                callback.onFailure(null, throttled(throttledForMs));
+            }
             return;
         }
+        if (EMConfig.maxRetries > 0)
+        {
+            new RetryCallback(context, endpoint, params, headers, method, callback).send();
+        }
+        else
+        {
+            sendAttemptAsync(context, endpoint, params, headers, method, callback);
+        }
+    }
+
+    private void sendAttemptAsync(RequestContext context, String endpoint, Map<String, String> params, Map<String, String> headers,
+                                  String method, Callback callback)
+    {
+        if (isHedgeable(endpoint, method))
+        {
+            long delayMs = latencies.percentile(endpoint, EMConfig.hedgingPercentile);
+            if (delayMs >= 0)
+            {
+                new HedgedRequest(context, endpoint, params, headers, method, callback).send(delayMs);
+                return;
+            }
+        }
+        new FailoverCallback(context, endpoint, params, headers, method, callback).send();
+    }
+
+    /**
+     * @return whether the request can be sent more than once, because it does not change anything on the server
+     */
+    private static boolean isIdempotent(String endpoint, String method)
+    {
+        return ENDPOINT_AUTH.equals(endpoint)
+               || (GET.equals(method) && (ENDPOINT_POLLTRANSACTION.equals(endpoint) || ENDPOINT_TOKEN.equals(endpoint)));
+    }
+
+    /**
+     * Only requests that only read from the server are sent twice at the same time.
+     */
+    private boolean isHedgeable(String endpoint, String method)
+    {
+        return EMConfig.hedgingPercentile > 0 && GET.equals(method) && isIdempotent(endpoint, method);
+    }
+
+    /**
+     * Idempotent requests are retried after any error of the connection. Other requests, like /validate/check, are only
+     * retried if the connection to the server could not be established or the server asked the client to wait, so that
+     * they cannot have been processed.
+     *
+     * @param attempt number of the failed attempt, starting at 0
+     * @return the delay in milliseconds before the next attempt, or -1 if the request must not be retried
+     */
+    private long retryDelay(RequestContext context, String endpoint, String method, IOException e, int attempt)
+    {
+        boolean throttled = e instanceof EMClientException && ((EMClientException) e).error().code == EMError.SERVER_THROTTLED;
+        if (attempt >= EMConfig.maxRetries || (e instanceof EMClientException && !throttled) || context.failure() != null
+            || !(throttled || isIdempotent(endpoint, method) || isConnectFailure(e)))
+        {
+            return -1;
+        }
+        // Exponential backoff with jitter, so that the retries of multiple clients are spread
+        long backoff = Math.min(EMConfig.retryMaxBackoffMs, EMConfig.retryInitialBackoffMs << Math.min(attempt, 20));
+        long delayMs = Math.max(servers.throttledForMs(), backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+        if (delayMs >= context.remainingMs())
+        {
+            return -1;
+        }
+        eduMFA.metrics().requestRetried();
+        eduMFA.log(() -> "Request to " + endpoint + " failed with " + e.getMessage() + ", retrying in " + delayMs + " ms.");
+        return delayMs;
+    }
+
+    /**
+     * Execute a request on the calling thread and wait for the response.
+     * If the selected server cannot be reached, the request is sent to the next server. Failed requests are retried
+     * according to the retry policy. While all servers asked the client to wait, the request is delayed or fails if
+     * the wait exceeds its deadline.
+     *
+     * @param context  context of the call, the request is cancelled with it or when its deadline is reached
+     * @param endpoint server endpoint
+     * @param params   request parameters
+     * @param headers  request headers
+     * @param method   http request method
+     * @return the response, which has to be closed by the caller
+     * @throws IOException if the request could not be created or executed
+     */
+    Response sendRequest(RequestContext context, String endpoint, Map<String, String> params, Map<String, String> headers, String method)
+            throws IOException
+    {
+        long throttledForMs = servers.throttledForMs();
+        if (throttledForMs > 0)
+        {
+            // Wait until the servers accept requests again, unless that takes longer than the request may
+            if (throttledForMs >= context.remainingMs())
+            {
+                throw throttled(throttledForMs);
+            }
+            sleep(context, throttledForMs);
+        }
+        for (int attempt = 0; ; attempt++)
+        {
+            try
+            {
+                return sendAttempt(context, endpoint, params, headers, method);
+            }
+            catch (IOException e)
+            {
+                long delayMs = retryDelay(context, endpoint, method, e, attempt);
+                if (delayMs < 0)
+                {
+                    throw e;
+                }
+                sleep(context, delayMs);
+            }
+        }
+    }
+
+    private static void sleep(RequestContext context, long delayMs) throws EMClientException
+    {
+        try
+        {
+            Thread.sleep(delayMs);
+        }
+        catch (InterruptedException e)
+        {
+            context.cancel();
+            Thread.currentThread().interrupt();
+            throw context.cancelledException();
+        }
+    }
+
+    private Response sendAttempt(RequestContext context, String endpoint, Map<String, String> params, Map<String, String> headers,
+                                 String method) throws IOException
+    {
+        limiter.acquireBlocking(context);
+        long start = System.nanoTime();
+        try
+        {
+            Response response = sendToServers(context, endpoint, params, headers, method);
+            limiter.release(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), response.code() >= 500);
+            return response;
+        }
+        catch (IOException e)
+        {
+            limiter.release(-1, isDropped(context, e));
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            limiter.release(-1, false);
+            throw e;
+        }
+    }
+
+    private Response sendToServers(RequestContext context, String endpoint, Map<String, String> params, Map<String, String> headers,
+                                   String method) throws IOException
+    {
+        List<Server> tried = new ArrayList<>();
+        Server server = select(tried);
+        while (true)
+        {
+            Request request = buildRequest(server.url, endpoint, params, headers, method);
+            if (request == null)
+            {
+                server.requestSkipped();
+                throw new IOException("Request could not be created because the url could not be parsed");
+            }
+            tried.add(server);
+            server.requestStarted();
+            long start = System.nanoTime();
+            Call call = newCall(context, request);
+            Response response;
+            try
+            {
+                response = call.execute();
+                server.requestCompleted(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), response.code(), isThrottled(response));
+            }
+            catch (IOException e)
+            {
+                if (Thread.currentThread().isInterrupted())
+                {
+                    // okhttp stops waiting for the response when the thread is interrupted, but does not cancel the call
+                    context.cancel();
+                    server.requestFailed(false, true);
+                    throw context.cancelledException();
+                }
+                IOException failure = connectFailure(call, e);
+                boolean unreachable = isConnectFailure(failure);
+                server.requestFailed(unreachable, isAbandoned(context));
+                Server next = unreachable && context.failure() == null ? servers.select(tried) : null;
+                if (next == null)
+                {
+                    throw failure;
+                }
+                eduMFA.log("Server " + server.url + " is not reachable, trying the next server.");
+                server = next;
+                continue;
+            }
+            if (!isThrottled(response))
+            {
+                return response;
+            }
+            long throttledForMs = throttle(server, response);
+            // The request was not processed, so it can be sent to another server
+            Server next = context.failure() == null ? servers.select(tried) : null;
+            if (next == null)
+            {
+                throw throttled(throttledForMs);
+            }
+            server = next;
+        }
+    }
+
+    /**
+     * @throws EMClientException if no server is available because their circuit breakers are open
+     */
+    private Server select(List<Server> tried) throws EMClientException
+    {
+        Server server = servers.select(tried);
+        if (server == null)
+        {
+            eduMFA.metrics().circuitBreakerRejected();
+            throw new EMClientException(EMError.SERVER_UNAVAILABLE,
+                                        "The request was not sent because too many requests to the server failed recently.");
+        }
+        return server;
+    }
+
+    /**
+     * @return whether the server rejected the request because it is overloaded or the client sent too many requests
+     */
+    private static boolean isThrottled(Response response)
+    {
+        return response.code() == HTTP_TOO_MANY_REQUESTS || response.code() == HttpURLConnection.HTTP_UNAVAILABLE;
+    }
+
+    /**
+     * Do not send requests to the server for the time it asked for in the Retry-After header and close the response.
+     *
+     * @return the time in milliseconds the server asked to wait
+     */
+    private long throttle(Server server, Response response)
+    {
+        long throttledForMs = retryAfterMs(response.header(HEADER_RETRY_AFTER));
+        server.throttle(throttledForMs);
+        response.close();
+        eduMFA.log("Server " + server.url + " responded with " + response.code() + ", sending no requests to it for " + throttledForMs + " ms.");
+        return throttledForMs;
+    }
+
+    /**
+     * @param retryAfter value of the Retry-After header, either seconds or a date
+     * @return the time to wait in milliseconds
+     */
+    static long retryAfterMs(String retryAfter)
+    {
+        if (retryAfter == null || retryAfter.trim().isEmpty())
+        {
+            return DEFAULT_RETRY_AFTER_MS;
+        }
+        long retryAfterMs;
+        try
+        {
+            retryAfterMs = Long.parseLong(retryAfter.trim()) * 1000;
+        }
+        catch (NumberFormatException e)
+        {
+            try
+            {
+                retryAfterMs = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli()
+                               - System.currentTimeMillis();
+            }
+            catch (DateTimeParseException ex)
+            {
+                return DEFAULT_RETRY_AFTER_MS;
+            }
+        }
+        return Math.max(0, Math.min(MAX_RETRY_AFTER_MS, retryAfterMs));
+    }
+
+    private EMClientException throttled(long throttledForMs)
+    {
+        eduMFA.metrics().requestThrottled();
+        return new EMClientException(EMError.SERVER_THROTTLED, "The server asked to wait " + throttledForMs + " ms before sending more requests.");
+    }
+
+    /**
+     * @return whether the failure of the request indicates that the server is overloaded
+     */
+    private static boolean isDropped(RequestContext context, IOException e)
+    {
+        if (e instanceof EMClientException)
+        {
+            return ((EMClientException) e).error().code == EMError.SERVER_THROTTLED;
+        }
+        return !isAbandoned(context);
+    }
+
+    /**
+     * @return whether the caller gave up on the request before its deadline, so that the failure is not caused by the server
+     */
+    private static boolean isAbandoned(RequestContext context)
+    {
+        return context.isCancelled() && !context.isExpired();
+    }
+
+    private Call newCall(RequestContext context, Request request)
+    {
+        Call call = client.newCall(request.newBuilder().tag(ConnectPhase.class, new ConnectPhase()).build());
+        // The timeout of the whole call is limited by the time that is left of the deadline
+        call.timeout().timeout(context.remainingMs(), TimeUnit.MILLISECONDS);
+        context.register(call);
+        return call;
+    }
+
+    /**
+     * @return whether the request failed because no connection to the server could be established, so that it was not
+     * received by the server
+     */
+    static boolean isConnectFailure(IOException e)
+    {
+        return e instanceof ConnectException || e instanceof NoRouteToHostException || e instanceof UnknownHostException;
+    }
+
+    /**
+     * okhttp reports a failure to connect, e.g. a connect timeout, with the same exceptions as a failure after the
+     * request was sent. Whether the request was sent is therefore taken from the events of the call.
+     *
+     * @return the failure of the call, as ConnectException if the call failed to connect to the server
+     */
+    static IOException connectFailure(Call call, IOException e)
+    {
+        if (isConnectFailure(e) || !ConnectPhase.failedToConnect(call))
+        {
+            return e;
+        }
+        ConnectException connectException = new ConnectException(e.getMessage());
+        connectException.initCause(e);
+        return connectException;
+    }
+
+    /**
+     * Check all servers, so that servers that could not be reached are used again as soon as they are back, and the
+     * latency of servers that are rarely selected stays current.
+     */
+    private void probeServers()
+    {
+        for (Server server : servers.servers())
+        {
+            HttpUrl url = HttpUrl.parse(server.url);
+            if (url == null)
+            {
+                continue;
+            }
+            Request request = new Request.Builder().url(url).addHeader(HEADER_USER_AGENT, EMConfig.userAgent).build();
+            long start = System.nanoTime();
+            client.newCall(request).enqueue(new Callback()
+            {
+                @Override
+                public void onFailure(@NotNull Call call, @NotNull IOException e)
+                {
+                    if (server.isHealthy())
+                    {
+                        eduMFA.log("Health probe of server " + server.url + " failed: " + e.getMessage());
+                    }
+                    server.probed(false, 0);
+                }
+
+                @Override
+                public void onResponse(@NotNull Call call, @NotNull Response response)
+                {
+                    response.close();
+                    if (!server.isHealthy())
+                    {
+                        eduMFA.log("Server " + server.url + " is reachable again.");
+                    }
+                    server.probed(true, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            });
+        }
+    }
+
+    private Request buildRequest(String serverURL, String endpoint, Map<String, String> params, Map<String, String> headers, String method)
+    {
+        HttpUrl httpUrl = HttpUrl.parse(serverURL + endpoint);
+        if (httpUrl == null)
+        {
+            eduMFA.error("Server url could not be parsed: " + (serverURL + endpoint));
+            return null;
+        }
         HttpUrl.Builder urlBuilder = httpUrl.newBuilder();
-        eduMFA.log(method + " " + endpoint);
-        params.forEach((k, v) ->
-                       {
-                           if (k.equals("pass") || k.equals("password"))
+        if (eduMFA.logEnabled())
+        {
+            eduMFA.log(method + " " + endpoint);
+            params.forEach((k, v) ->
                            {
-                               v = "*".repeat(v.length());
-                           }
+                               if (k.equals("pass") || k.equals("password"))
+                               {
+                                   v = "*".repeat(v.length());
+                               }
 
-                           eduMFA.log(k + "=" + v);
-                       });
+                               eduMFA.log(k + "=" + v);
+                           });
+        }
 
         if (GET.equals(method))
         {
@@ -178,6 +644,313 @@ class Endpoint
 
         Request request = requestBuilder.build();
         //eduMFA.log("HEADERS:\n" + request.headers().toString());
-        client.newCall(request).enqueue(callback);
+        return request;
+    }
+
+    /**
+     * Sends the request to the selected server and to the next one if the server cannot be reached. The request holds
+     * a permit of the concurrency limiter until it is finished.
+     */
+    private class FailoverCallback implements Callback
+    {
+        private final RequestContext context;
+        private final String endpoint;
+        private final Map<String, String> params;
+        private final Map<String, String> headers;
+        private final String method;
+        private final Callback callback;
+        private final List<Server> tried = new ArrayList<>();
+        private volatile Server server;
+        private volatile Call call;
+        // Set if another request for the same call already succeeded
+        private volatile boolean abandoned = false;
+        // Cleared if the request is part of a HedgedRequest, which records the latency of the whole call instead
+        private boolean recordLatency = true;
+        private long start;
+
+        FailoverCallback(RequestContext context, String endpoint, Map<String, String> params, Map<String, String> headers, String method,
+                         Callback callback)
+        {
+            this.context = context;
+            this.endpoint = endpoint;
+            this.params = params;
+            this.headers = headers;
+            this.method = method;
+            this.callback = callback;
+        }
+
+        void send()
+        {
+            limiter.acquire(context).whenComplete((granted, t) ->
+            {
+                if (t != null)
+                {
+                    EMClientException e = EMClientException.unwrap(t);
+                    callback.onFailure(null, e != null ? e : new IOException(t));
+                    return;
+                }
+                try
+                {
+                    sendTo(select(tried));
+                }
+                catch (EMClientException e)
+                {
+                    fail(null, e, -1, false);
+                }
+            });
+        }
+
+        /**
+         * Return the permit of the limiter and pass the failure to the callback.
+         */
+        private void fail(Call call, IOException e, long latencyMs, boolean dropped)
+        {
+            limiter.release(latencyMs, dropped);
+            callback.onFailure(call, e);
+        }
+
+        private void sendTo(Server server)
+        {
+            this.server = server;
+            Request request = buildRequest(server.url, endpoint, params, headers, method);
+            if (request == null)
+            {
+                server.requestSkipped();
+                // Invoke the callback to terminate the thread that called this function.
+                fail(null, new IOException("Request could not be created because the url could not be parsed"), -1, false);
+                return;
+            }
+            tried.add(server);
+            server.requestStarted();
+            start = System.nanoTime();
+            call = newCall(context, request);
+            call.enqueue(this);
+        }
+
+        /**
+         * Do not send the request to the given server, because the other request for the same call is already sent to it.
+         */
+        void exclude(Server server)
+        {
+            tried.add(server);
+        }
+
+        /**
+         * Cancel the request unless it is the given call, which already received its response.
+         */
+        void abandon(Call winner)
+        {
+            abandoned = true;
+            Call current = call;
+            if (current != null && current != winner)
+            {
+                current.cancel();
+            }
+        }
+
+        @Override
+        public void onFailure(@NotNull Call call, @NotNull IOException e)
+        {
+            IOException failure = connectFailure(call, e);
+            boolean unreachable = isConnectFailure(failure);
+            server.requestFailed(unreachable, abandoned || isAbandoned(context));
+            Server next = unreachable && !abandoned && context.failure() == null ? servers.select(tried) : null;
+            if (next != null)
+            {
+                eduMFA.log("Server " + server.url + " is not reachable, trying the next server.");
+                sendTo(next);
+                return;
+            }
+            fail(call, failure, -1, !abandoned && !isAbandoned(context));
+        }
+
+        @Override
+        public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException
+        {
+            long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            server.requestCompleted(latencyMs, response.code(), isThrottled(response));
+            if (isThrottled(response))
+            {
+                long throttledForMs = throttle(server, response);
+                // The request was not processed, so it can be sent to another server
+                Server next = !abandoned && context.failure() == null ? servers.select(tried) : null;
+                if (next != null)
+                {
+                    sendTo(next);
+                }
+                else
+                {
+                    fail(call, throttled(throttledForMs), latencyMs, true);
+                }
+                return;
+            }
+            if (recordLatency && isHedgeable(endpoint, method))
+            {
+                latencies.record(endpoint, latencyMs);
+            }
+            limiter.release(latencyMs, response.code() >= 500);
+            callback.onResponse(call, response);
+        }
+    }
+
+    /**
+     * Sends a second request if the first one did not receive a response within the given delay, preferably to another
+     * server. The first response is passed to the callback and the other request is cancelled.
+     */
+    private class HedgedRequest implements Callback
+    {
+        private final RequestContext context;
+        private final String endpoint;
+        private final Map<String, String> params;
+        private final Map<String, String> headers;
+        private final String method;
+        private final Callback callback;
+        private final AtomicBoolean completed = new AtomicBoolean();
+        // Requests that did not fail yet
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final FailoverCallback primary;
+        private volatile FailoverCallback hedge;
+        private volatile ScheduledFuture<?> scheduledHedge;
+        private long start;
+
+        HedgedRequest(RequestContext context, String endpoint, Map<String, String> params, Map<String, String> headers, String method,
+                      Callback callback)
+        {
+            this.context = context;
+            this.endpoint = endpoint;
+            this.params = params;
+            this.headers = headers;
+            this.method = method;
+            this.callback = callback;
+            this.primary = new FailoverCallback(context, endpoint, params, headers, method, this);
+            primary.recordLatency = false;
+        }
+
+        void send(long delayMs)
+        {
+            start = System.nanoTime();
+            primary.send();
+            if (!completed.get())
+            {
+                scheduledHedge = eduMFA.scheduler().schedule(this::sendHedge, delayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void sendHedge()
+        {
+            if (completed.get() || context.failure() != null)
+            {
+                return;
+            }
+            FailoverCallback second = new FailoverCallback(context, endpoint, params, headers, method, this);
+            second.recordLatency = false;
+            Server first = primary.server;
+            if (servers.size() > 1 && first != null)
+            {
+                second.exclude(first);
+            }
+            pending.incrementAndGet();
+            hedge = second;
+            eduMFA.metrics().requestHedged();
+            eduMFA.log(() -> "No response from " + endpoint + " yet, sending a hedged request.");
+            second.send();
+        }
+
+        @Override
+        public void onFailure(@NotNull Call call, @NotNull IOException e)
+        {
+            // Wait for the other request if there is one
+            if (pending.decrementAndGet() == 0 && completed.compareAndSet(false, true))
+            {
+                cancelHedge();
+                callback.onFailure(call, e);
+            }
+        }
+
+        @Override
+        public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException
+        {
+            if (!completed.compareAndSet(false, true))
+            {
+                response.close();
+                return;
+            }
+            cancelHedge();
+            // The time since the primary request was sent, no matter which request won, so that the hedging delay is
+            // based on how long the calls take and not on how fast the winners are
+            latencies.record(endpoint, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            primary.abandon(call);
+            FailoverCallback second = hedge;
+            if (second != null)
+            {
+                second.abandon(call);
+            }
+            callback.onResponse(call, response);
+        }
+
+        private void cancelHedge()
+        {
+            ScheduledFuture<?> scheduled = scheduledHedge;
+            if (scheduled != null)
+            {
+                scheduled.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Sends the request again after a delay if it failed and the retry policy allows it.
+     */
+    private class RetryCallback implements Callback
+    {
+        private final RequestContext context;
+        private final String endpoint;
+        private final Map<String, String> params;
+        private final Map<String, String> headers;
+        private final String method;
+        private final Callback callback;
+        private int attempt = 0;
+
+        RetryCallback(RequestContext context, String endpoint, Map<String, String> params, Map<String, String> headers, String method,
+                      Callback callback)
+        {
+            this.context = context;
+            this.endpoint = endpoint;
+            this.params = params;
+            this.headers = headers;
+            this.method = method;
+            this.callback = callback;
+        }
+
+        void send()
+        {
+            sendAttemptAsync(context, endpoint, params, headers, method, this);
+        }
+
+        @Override
+        public void onFailure(@NotNull Call call, @NotNull IOException e)
+        {
+            long delayMs = retryDelay(context, endpoint, method, e, attempt++);
+            if (delayMs < 0)
+            {
+                callback.onFailure(call, e);
+                return;
+            }
+            try
+            {
+                eduMFA.scheduler().schedule(this::send, delayMs, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException ree)
+            {
+                // The client is closed
+                callback.onFailure(call, e);
+            }
+        }
+
+        @Override
+        public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException
+        {
+            callback.onResponse(call, response);
+        }
     }
 }
@@ -23,6 +23,8 @@
  * */
 package org.edumfa;
 
+import java.util.function.Supplier;
+
 /**
  * The java-client will log infos and errors to this interface if it is set.
  * Implementations of this interface (the plugins) should map these methods to their corresponding loggers.
@@ -31,6 +33,30 @@ public interface IPILogger
 {
     void log(String message);
 
+    /**
+     * Log a message that is only created if {@link #isLogEnabled()} returns true.
+     *
+     * @param message supplier of the message
+     */
+    default void log(Supplier<String> message)
+    {
+        if (isLogEnabled())
+        {
+            log(message.get());
+        }
+    }
+
+    /**
+     * Implementations should return false if messages passed to log would be discarded, e.g. because the debug level of the plugins
+     * logger is disabled. The java-client then skips creating these messages, which includes formatting the server responses.
+     *
+     * @return whether messages passed to log are written
+     */
+    default boolean isLogEnabled()
+    {
+        return true;
+    }
+
     void error(String message);
 
     void log(Throwable t);
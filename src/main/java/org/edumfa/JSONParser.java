@@ -31,10 +31,18 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import static org.edumfa.EMConstants.ASSERTIONCLIENTEXTENSIONS;
 import static org.edumfa.EMConstants.ATTRIBUTES;
@@ -77,6 +85,8 @@ import static org.edumfa.EMConstants.WEBAUTHN_SIGN_REQUEST;
 
 public class JSONParser
 {
+    // Gson instances are thread-safe, so the one for formatting is shared
+    private static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().setLenient().create();
     private final EduMFA edumfa;
 
     public JSONParser(EduMFA edumfa)
@@ -98,7 +108,6 @@ public class JSONParser
         }
 
         JsonObject obj;
-        Gson gson = new GsonBuilder().setPrettyPrinting().setLenient().create();
         try
         {
             obj = JsonParser.parseString(json).getAsJsonObject();
@@ -109,7 +118,7 @@ public class JSONParser
             return json;
         }
 
-        return gson.toJson(obj);
+        return PRETTY_GSON.toJson(obj);
     }
 
     /**
@@ -120,21 +129,37 @@ public class JSONParser
      */
     String extractAuthToken(String serverResponse)
     {
-        if (serverResponse != null && !serverResponse.isEmpty())
+        return extractAuthToken(serverResponse != null ? JsonBody.of(serverResponse) : null);
+    }
+
+    /**
+     * Extract the auth token from the response of the server while it is read.
+     *
+     * @param body response of the server or null if there is none
+     * @return the auth token or null if error
+     */
+    String extractAuthToken(JsonBody body)
+    {
+        if (!isEmpty(body))
         {
-            JsonElement root = JsonParser.parseString(serverResponse);
-            if (root != null)
+            String token = null;
+            try (JsonReader reader = body.newReader())
             {
-                try
+                reader.beginObject();
+                if (enterObject(reader, RESULT) && enterObject(reader, VALUE) && findName(reader, TOKEN) && reader.peek() == JsonToken.STRING)
                 {
-                    JsonObject obj = root.getAsJsonObject();
-                    return obj.getAsJsonObject(RESULT).getAsJsonObject(VALUE).getAsJsonPrimitive(TOKEN).getAsString();
-                }
-                catch (Exception e)
-                {
-                    edumfa.error("Response did not contain an authorization token: " + formatJson(serverResponse));
+                    token = reader.nextString();
                 }
             }
+            catch (IOException | RuntimeException e)
+            {
+                token = null;
+            }
+            if (token != null)
+            {
+                return token;
+            }
+            edumfa.error("Response did not contain an authorization token: " + formatJson(body.keptText()));
         }
         else
         {
@@ -143,6 +168,32 @@ public class JSONParser
         return null;
     }
 
+    /**
+     * Get the expiry of a JWT from its exp claim. The signature is not verified, the token is only used to decide when to get a new one.
+     *
+     * @param jwt JWT as returned by /auth
+     * @return expiry in milliseconds since the epoch or 0 if the JWT has no exp claim
+     */
+    long extractJWTExpiry(String jwt)
+    {
+        String[] parts = jwt.split("\\.");
+        if (parts.length < 2)
+        {
+            return 0;
+        }
+        try
+        {
+            String payload = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
+            JsonPrimitive exp = JsonParser.parseString(payload).getAsJsonObject().getAsJsonPrimitive("exp");
+            return exp != null && exp.isNumber() ? exp.getAsLong() * 1000 : 0;
+        }
+        catch (Exception e)
+        {
+            // Tokens without a readable expiry are not cached
+            return 0;
+        }
+    }
+
     /**
      * Parse the response of the server into a EMResponse object.
      *
@@ -151,122 +202,305 @@ public class JSONParser
      */
     public EMResponse parseEMResponse(String serverResponse)
     {
-        if (serverResponse == null || serverResponse.isEmpty())
+        return parseEMResponse(serverResponse != null ? JsonBody.of(serverResponse) : null, true);
+    }
+
+    /**
+     * Parse the response of the server into a EMResponse object while it is read.
+     *
+     * @param body response of the server or null if there is none
+     * @param raw  whether to keep the text of the response in {@link EMResponse#rawMessage}
+     * @return EMResponse or null if the response is empty
+     */
+    EMResponse parseEMResponse(JsonBody body, boolean raw)
+    {
+        if (isEmpty(body))
         {
             return null;
         }
 
         EMResponse response = new EMResponse();
-        response.rawMessage = serverResponse;
-
-        JsonObject obj;
         try
         {
-            obj = JsonParser.parseString(serverResponse).getAsJsonObject();
+            String text = raw ? body.text() : body.keptText();
+            if (text != null)
+            {
+                response.rawMessage = text;
+            }
         }
-        catch (JsonSyntaxException e)
+        catch (IOException e)
         {
             edumfa.error(e);
-            return response;
+            return new EMResponse();
         }
 
-        response.id = getInt(obj, ID);
-        response.emVersion = getString(obj, VERSION_NUMBER);
-        response.signature = getString(obj, SIGNATURE);
-        response.jsonRPCVersion = getString(obj, JSONRPC);
-
-        JsonObject result = obj.getAsJsonObject(RESULT);
-        if (result != null)
+        try (JsonReader reader = body.newReader())
         {
-            String r = getString(result, AUTHENTICATION);
-            for (AuthenticationStatus en : AuthenticationStatus.values())
+            reader.beginObject();
+            // The detail is only used if the result does not contain an error, but the order of the keys is not fixed
+            EMResponse detail = null;
+            while (reader.hasNext())
             {
-                if (en.toString().equals(r))
+                String name = reader.nextName();
+                if (ID.equals(name))
+                {
+                    response.id = readInt(reader, name);
+                }
+                else if (VERSION_NUMBER.equals(name))
+                {
+                    response.emVersion = readString(reader, name);
+                }
+                else if (SIGNATURE.equals(name))
                 {
-                    response.authentication = en;
+                    response.signature = readString(reader, name);
+                }
+                else if (JSONRPC.equals(name))
+                {
+                    response.jsonRPCVersion = readString(reader, name);
+                }
+                else if (RESULT.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT)
+                {
+                    readResult(reader, response);
+                }
+                else if (DETAIL.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT)
+                {
+                    detail = new EMResponse();
+                    readDetail(reader, detail);
+                }
+                else
+                {
+                    reader.skipValue();
                 }
             }
-            response.status = getBoolean(result, STATUS);
-            response.value = getBoolean(result, VALUE);
+            reader.endObject();
 
-            JsonElement errElem = result.get(ERROR);
-            if (errElem != null && !errElem.isJsonNull())
+            if (detail != null && response.error == null)
             {
-                JsonObject errObj = result.getAsJsonObject(ERROR);
-                response.error = new EMError(getInt(errObj, CODE), getString(errObj, MESSAGE));
-                return response;
+                response.preferredClientMode = detail.preferredClientMode;
+                response.message = detail.message;
+                response.image = detail.image;
+                response.serial = detail.serial;
+                response.transactionID = detail.transactionID;
+                response.type = detail.type;
+                response.otpLength = detail.otpLength;
+                response.messages = detail.messages;
+                response.multichallenge = detail.multichallenge;
             }
         }
+        catch (IOException | RuntimeException e)
+        {
+            edumfa.error(e);
+            EMResponse empty = new EMResponse();
+            empty.rawMessage = response.rawMessage;
+            return empty;
+        }
+        return response;
+    }
 
-        JsonElement detailElem = obj.get(DETAIL);
-        if (detailElem != null && !detailElem.isJsonNull())
+    private void readResult(JsonReader reader, EMResponse response) throws IOException
+    {
+        reader.beginObject();
+        while (reader.hasNext())
         {
-            JsonObject detail = obj.getAsJsonObject(DETAIL);
+            String name = reader.nextName();
+            if (AUTHENTICATION.equals(name))
+            {
+                String r = readString(reader, name);
+                for (AuthenticationStatus en : AuthenticationStatus.values())
+                {
+                    if (en.toString().equals(r))
+                    {
+                        response.authentication = en;
+                    }
+                }
+            }
+            else if (STATUS.equals(name))
+            {
+                response.status = readBoolean(reader, name);
+            }
+            else if (VALUE.equals(name))
+            {
+                response.value = readBoolean(reader, name);
+            }
+            else if (ERROR.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT)
+            {
+                response.error = readError(reader);
+            }
+            else
+            {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
 
-            // Translate some preferred client mode names
-            String modeFromResponse = getString(detail, PREFERRED_CLIENT_MODE);
-            if ("poll".equals(modeFromResponse))
+    private EMError readError(JsonReader reader) throws IOException
+    {
+        int code = 0;
+        String message = "";
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String name = reader.nextName();
+            if (CODE.equals(name))
             {
-                response.preferredClientMode = "push";
+                code = readInt(reader, name);
             }
-            else if ("interactive".equals(modeFromResponse))
+            else if (MESSAGE.equals(name))
             {
-                response.preferredClientMode = "otp";
+                message = readString(reader, name);
             }
             else
             {
-                response.preferredClientMode = modeFromResponse;
+                reader.skipValue();
             }
-            response.message = getString(detail, MESSAGE);
-            response.image = getString(detail, IMAGE);
-            response.serial = getString(detail, SERIAL);
-            response.transactionID = getString(detail, TRANSACTION_ID);
-            response.type = getString(detail, TYPE);
-            response.otpLength = getInt(detail, OTPLEN);
+        }
+        reader.endObject();
+        return new EMError(code, message);
+    }
 
-            JsonArray arrMessages = detail.getAsJsonArray(MESSAGES);
-            if (arrMessages != null)
+    private void readDetail(JsonReader reader, EMResponse response) throws IOException
+    {
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String name = reader.nextName();
+            if (PREFERRED_CLIENT_MODE.equals(name))
+            {
+                // Translate some preferred client mode names
+                String modeFromResponse = readString(reader, name);
+                if ("poll".equals(modeFromResponse))
+                {
+                    response.preferredClientMode = "push";
+                }
+                else if ("interactive".equals(modeFromResponse))
+                {
+                    response.preferredClientMode = "otp";
+                }
+                else
+                {
+                    response.preferredClientMode = modeFromResponse;
+                }
+            }
+            else if (MESSAGE.equals(name))
+            {
+                response.message = readString(reader, name);
+            }
+            else if (IMAGE.equals(name))
+            {
+                response.image = readString(reader, name);
+            }
+            else if (SERIAL.equals(name))
+            {
+                response.serial = readString(reader, name);
+            }
+            else if (TRANSACTION_ID.equals(name))
             {
-                arrMessages.forEach(val ->
-                                    {
-                                        if (val != null)
-                                        {
-                                            response.messages.add(val.getAsString());
-                                        }
-                                    });
+                response.transactionID = readString(reader, name);
             }
+            else if (TYPE.equals(name))
+            {
+                response.type = readString(reader, name);
+            }
+            else if (OTPLEN.equals(name))
+            {
+                response.otpLength = readInt(reader, name);
+            }
+            else if (MESSAGES.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY)
+            {
+                readStringArray(reader, response.messages);
+            }
+            else if (MULTI_CHALLENGE.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY)
+            {
+                reader.beginArray();
+                while (reader.hasNext())
+                {
+                    response.multichallenge.add(readChallenge(reader));
+                }
+                reader.endArray();
+            }
+            else
+            {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
 
-            JsonArray arrChallenges = detail.getAsJsonArray(MULTI_CHALLENGE);
-            if (arrChallenges != null)
+    private Challenge readChallenge(JsonReader reader) throws IOException
+    {
+        String serial = "", message = "", clientmode = "", image = "", transactionid = "", type = "";
+        String webAuthnSignRequest = "", u2fSignRequest = "";
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String name = reader.nextName();
+            if (SERIAL.equals(name))
+            {
+                serial = readString(reader, name);
+            }
+            else if (MESSAGE.equals(name))
+            {
+                message = readString(reader, name);
+            }
+            else if (CLIENT_MODE.equals(name))
+            {
+                clientmode = readString(reader, name);
+            }
+            else if (IMAGE.equals(name))
             {
-                for (int i = 0; i < arrChallenges.size(); i++)
+                image = readString(reader, name);
+            }
+            else if (TRANSACTION_ID.equals(name))
+            {
+                transactionid = readString(reader, name);
+            }
+            else if (TYPE.equals(name))
+            {
+                type = readString(reader, name);
+            }
+            else if (ATTRIBUTES.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT)
+            {
+                // The sign requests are passed on as json, the type might not be known yet, so keep both
+                reader.beginObject();
+                while (reader.hasNext())
                 {
-                    JsonObject challenge = arrChallenges.get(i).getAsJsonObject();
-                    String serial = getString(challenge, SERIAL);
-                    String message = getString(challenge, MESSAGE);
-                    String clientmode = getString(challenge, CLIENT_MODE);
-                    String image = getString(challenge, IMAGE);
-                    String transactionid = getString(challenge, TRANSACTION_ID);
-                    String type = getString(challenge, TYPE);
-
-                    if (TOKEN_TYPE_WEBAUTHN.equals(type))
-                    {
-                        String webAuthnSignRequest = getItemFromAttributes(WEBAUTHN_SIGN_REQUEST, challenge);
-                        response.multichallenge.add(new WebAuthn(serial, message, clientmode, image, transactionid, webAuthnSignRequest));
-                    }
-                    else if (TOKEN_TYPE_U2F.equals(type))
+                    String attribute = reader.nextName();
+                    if ((WEBAUTHN_SIGN_REQUEST.equals(attribute) || U2F_SIGN_REQUEST.equals(attribute)) && reader.peek() != JsonToken.NULL)
                     {
-                        String u2fSignRequest = getItemFromAttributes(U2F_SIGN_REQUEST, challenge);
-                        response.multichallenge.add(new U2F(serial, message, clientmode, image, transactionid, u2fSignRequest));
+                        String signRequest = JsonParser.parseReader(reader).toString();
+                        if (WEBAUTHN_SIGN_REQUEST.equals(attribute))
+                        {
+                            webAuthnSignRequest = signRequest;
+                        }
+                        else
+                        {
+                            u2fSignRequest = signRequest;
+                        }
                     }
                     else
                     {
-                        response.multichallenge.add(new Challenge(serial, message, clientmode, image, transactionid, type));
+                        reader.skipValue();
                     }
                 }
+                reader.endObject();
+            }
+            else
+            {
+                reader.skipValue();
             }
         }
-        return response;
+        reader.endObject();
+
+        if (TOKEN_TYPE_WEBAUTHN.equals(type))
+        {
+            return new WebAuthn(serial, message, clientmode, image, transactionid, webAuthnSignRequest);
+        }
+        else if (TOKEN_TYPE_U2F.equals(type))
+        {
+            return new U2F(serial, message, clientmode, image, transactionid, u2fSignRequest);
+        }
+        return new Challenge(serial, message, clientmode, image, transactionid, type);
     }
 
     static String mergeWebAuthnSignRequest(WebAuthn webAuthn, List<String> arr) throws JsonSyntaxException
@@ -287,91 +521,142 @@ public class JSONParser
         return signRequest.toString();
     }
 
-    private String getItemFromAttributes(String item, JsonObject jsonObject)
+    /**
+     * Parse the response of the /token endpoint into a list of objects.
+     *
+     * @param serverResponse response of the server.
+     * @return list of token info objects or null. If the response cannot be read completely, the error is logged and
+     * the list contains the tokens that were read before.
+     */
+    List<TokenInfo> parseTokenInfoList(JsonBody serverResponse)
     {
-        String ret = "";
-        JsonElement attributeElement = jsonObject.get(ATTRIBUTES);
-        if (attributeElement != null && !attributeElement.isJsonNull())
+        if (isEmpty(serverResponse))
         {
-            JsonElement requestElement = attributeElement.getAsJsonObject().get(item);
-            if (requestElement != null && !requestElement.isJsonNull())
-            {
-                ret = requestElement.toString();
-            }
+            return null;
         }
+
+        List<TokenInfo> ret = new ArrayList<>();
+        tokenInfoIterator(serverResponse).forEachRemaining(ret::add);
         return ret;
     }
 
     /**
-     * Parse the response of the /token endpoint into a list of objects.
+     * Iterate over the tokens in the response of the /token endpoint. The tokens are read one by one while iterating,
+     * so that a large response does not have to be converted into a list first.
      *
-     * @param serverResponse response of the server.
-     * @return list of token info objects or null
+     * @param serverResponse response of the server
+     * @return iterator of token info objects. If the response does not contain tokens or cannot be read completely,
+     * the error is logged, the iteration ends early and {@link TokenInfoIterator#failed()} is true.
      */
-    List<TokenInfo> parseTokenInfoList(String serverResponse)
+    TokenInfoIterator tokenInfoIterator(JsonBody serverResponse)
     {
-        if (serverResponse == null || serverResponse.isEmpty())
+        if (isEmpty(serverResponse))
         {
-            return null;
+            return new TokenInfoIterator(null);
         }
 
-        List<TokenInfo> ret = new ArrayList<>();
-        JsonObject object;
+        JsonReader reader = serverResponse.newReader();
         try
         {
-            object = JsonParser.parseString(serverResponse).getAsJsonObject();
+            reader.beginObject();
+            if (enterObject(reader, RESULT) && enterObject(reader, VALUE) && findName(reader, TOKENS) && reader.peek() == JsonToken.BEGIN_ARRAY)
+            {
+                reader.beginArray();
+                return new TokenInfoIterator(reader);
+            }
+            edumfa.error("The response of the server does not contain any tokens.");
         }
-        catch (JsonSyntaxException e)
+        catch (IOException | RuntimeException e)
         {
             edumfa.error(e);
-            return ret;
         }
+        return new TokenInfoIterator(null);
+    }
+
+    /**
+     * Reads the elements of the tokens array when they are requested. Each token is read ahead, so that the iteration
+     * ends at a token that cannot be read instead of returning it incomplete.
+     */
+    class TokenInfoIterator implements Iterator<TokenInfo>
+    {
+        private final JsonReader reader;
+        private TokenInfo next;
+        private boolean failed;
 
-        JsonObject result = object.getAsJsonObject(RESULT);
-        if (result != null)
+        /**
+         * @param reader reader positioned inside the tokens array, null if the response does not contain one
+         */
+        private TokenInfoIterator(JsonReader reader)
         {
-            JsonObject value = result.getAsJsonObject(VALUE);
+            this.reader = reader;
+            this.failed = reader == null;
+            advance();
+        }
 
-            if (value != null)
+        private void advance()
+        {
+            next = null;
+            if (failed)
             {
-                JsonArray tokens = value.getAsJsonArray(TOKENS);
-                if (tokens != null)
+                return;
+            }
+            try
+            {
+                if (reader.hasNext())
                 {
-                    List<TokenInfo> infos = new ArrayList<>();
-                    tokens.forEach(jsonValue -> infos.add(parseSingleTokenInfo(jsonValue.toString())));
-                    ret = infos;
+                    // Only the tree of a single token is built, which is also needed for the raw json of the token
+                    JsonElement element = JsonParser.parseReader(reader);
+                    if (!element.isJsonObject())
+                    {
+                        throw new JsonSyntaxException("Expected the info of a token, but was " + element);
+                    }
+                    next = parseSingleTokenInfo(element.getAsJsonObject());
                 }
             }
+            catch (IOException | RuntimeException e)
+            {
+                edumfa.error(e);
+                failed = true;
+            }
         }
-        return ret;
-    }
 
-    /**
-     * Parse the info of a single token into an object.
-     *
-     * @param json json array element as string
-     * @return TokenInfo object, might be null object is json is empty
-     */
-    private TokenInfo parseSingleTokenInfo(String json)
-    {
-        TokenInfo info = new TokenInfo();
-        if (json == null || json.isEmpty())
+        /**
+         * @return whether the tokens could not be read completely
+         */
+        boolean failed()
         {
-            return info;
+            return failed;
         }
 
-        info.rawJson = json;
-
-        JsonObject obj;
-        try
+        @Override
+        public boolean hasNext()
         {
-            obj = JsonParser.parseString(json).getAsJsonObject();
+            return next != null;
         }
-        catch (JsonSyntaxException e)
+
+        @Override
+        public TokenInfo next()
         {
-            edumfa.error(e);
+            if (next == null)
+            {
+                throw new NoSuchElementException();
+            }
+            TokenInfo info = next;
+            advance();
             return info;
         }
+    }
+
+    /**
+     * Parse the info of a single token into an object.
+     *
+     * @param obj json object of the token
+     * @return TokenInfo object
+     */
+    private TokenInfo parseSingleTokenInfo(JsonObject obj)
+    {
+        TokenInfo info = new TokenInfo();
+        info.rawJson = obj.toString();
 
         info.active = getBoolean(obj, "active");
         info.count = getInt(obj, "count");
@@ -423,69 +708,86 @@ public class JSONParser
     /**
      * Parse the response of /token/init into an object.
      *
-     * @param serverResponse response of /token/init
+     * @param serverResponse response of /token/init or null if there is none
+     * @param raw            whether to keep the text of the response in {@link RolloutInfo#raw}
      * @return RolloutInfo object, might be null object if response is empty
      */
-    RolloutInfo parseRolloutInfo(String serverResponse)
+    RolloutInfo parseRolloutInfo(JsonBody serverResponse, boolean raw)
     {
         RolloutInfo rinfo = new RolloutInfo();
-        rinfo.raw = serverResponse;
         rinfo.googleurl = new RolloutInfo.GoogleURL();
         rinfo.oathurl = new RolloutInfo.OATHURL();
         rinfo.otpkey = new RolloutInfo.OTPKey();
 
-        if (serverResponse == null || serverResponse.isEmpty())
+        if (serverResponse == null)
         {
+            rinfo.raw = null;
             return rinfo;
         }
-
-        JsonObject obj;
         try
         {
-            obj = JsonParser.parseString(serverResponse).getAsJsonObject();
-
-            JsonObject result = obj.getAsJsonObject(RESULT);
-            JsonElement errElem = result.get(ERROR);
-            if (errElem != null && !errElem.isJsonNull())
+            String text = raw ? serverResponse.text() : serverResponse.keptText();
+            if (text != null)
+            {
+                rinfo.raw = text;
+            }
+            if (serverResponse.isEmpty())
             {
-                JsonObject errObj = result.getAsJsonObject(ERROR);
-                rinfo.error = new EMError(getInt(errObj, CODE), getString(errObj, MESSAGE));
                 return rinfo;
             }
+        }
+        catch (IOException e)
+        {
+            edumfa.error(e);
+            return rinfo;
+        }
 
-            JsonObject detail = obj.getAsJsonObject("detail");
-            if (detail != null)
+        try (JsonReader reader = serverResponse.newReader())
+        {
+            // The detail is only used if the result does not contain an error, but the order of the keys is not fixed
+            RolloutInfo detail = null;
+            reader.beginObject();
+            while (reader.hasNext())
             {
-                JsonObject google = detail.getAsJsonObject("googleurl");
-                if (google != null)
+                String name = reader.nextName();
+                if (RESULT.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT)
                 {
-                    rinfo.googleurl.description = getString(google, "description");
-                    rinfo.googleurl.img = getString(google, "img");
-                    rinfo.googleurl.value = getString(google, "value");
+                    reader.beginObject();
+                    while (reader.hasNext())
+                    {
+                        if (ERROR.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT)
+                        {
+                            rinfo.error = readError(reader);
+                        }
+                        else
+                        {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
                 }
-
-                JsonObject oath = detail.getAsJsonObject("oath");
-                if (oath != null)
+                else if (DETAIL.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT)
                 {
-                    rinfo.oathurl.description = getString(oath, "description");
-                    rinfo.oathurl.img = getString(oath, "img");
-                    rinfo.oathurl.value = getString(oath, "value");
+                    detail = new RolloutInfo();
+                    readRolloutDetail(reader, detail);
                 }
-
-                JsonObject otp = detail.getAsJsonObject("otpkey");
-                if (otp != null)
+                else
                 {
-                    rinfo.otpkey.description = getString(otp, "description");
-                    rinfo.otpkey.img = getString(otp, "img");
-                    rinfo.otpkey.value = getString(otp, "value");
-                    rinfo.otpkey.value_b32 = getString(otp, "value_b32");
+                    reader.skipValue();
                 }
+            }
+            reader.endObject();
 
-                rinfo.serial = getString(detail, "serial");
-                rinfo.rolloutState = getString(detail, "rollout_state");
+            if (detail != null && rinfo.error == null)
+            {
+                rinfo.googleurl = detail.googleurl;
+                rinfo.oathurl = detail.oathurl;
+                rinfo.otpkey = detail.otpkey;
+                rinfo.serial = detail.serial;
+                rinfo.rolloutState = detail.rolloutState;
             }
         }
-        catch (JsonSyntaxException | ClassCastException e)
+        catch (IOException | RuntimeException e)
         {
             edumfa.error(e);
             return rinfo;
@@ -494,6 +796,50 @@ public class JSONParser
         return rinfo;
     }
 
+    private void readRolloutDetail(JsonReader reader, RolloutInfo rinfo) throws IOException
+    {
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String name = reader.nextName();
+            if ("googleurl".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT)
+            {
+                Map<String, String> google = readStringObject(reader);
+                rinfo.googleurl.description = google.getOrDefault("description", "");
+                rinfo.googleurl.img = google.getOrDefault("img", "");
+                rinfo.googleurl.value = google.getOrDefault("value", "");
+            }
+            else if ("oath".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT)
+            {
+                Map<String, String> oath = readStringObject(reader);
+                rinfo.oathurl.description = oath.getOrDefault("description", "");
+                rinfo.oathurl.img = oath.getOrDefault("img", "");
+                rinfo.oathurl.value = oath.getOrDefault("value", "");
+            }
+            else if ("otpkey".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT)
+            {
+                Map<String, String> otp = readStringObject(reader);
+                rinfo.otpkey.description = otp.getOrDefault("description", "");
+                rinfo.otpkey.img = otp.getOrDefault("img", "");
+                rinfo.otpkey.value = otp.getOrDefault("value", "");
+                rinfo.otpkey.value_b32 = otp.getOrDefault("value_b32", "");
+            }
+            else if ("serial".equals(name))
+            {
+                rinfo.serial = readString(reader, name);
+            }
+            else if ("rollout_state".equals(name))
+            {
+                rinfo.rolloutState = readString(reader, name);
+            }
+            else
+            {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
     /**
      * Parse the json string that is returned from the browser after signing the WebAuthnSignRequest into a map.
      * The map contains the parameters with the corresponding keys ready to be sent to the server.
@@ -561,6 +907,140 @@ public class JSONParser
         return params;
     }
 
+    /**
+     * @return whether there is no response or it has no content. An error of the connection is logged and counts as empty.
+     */
+    private boolean isEmpty(JsonBody body)
+    {
+        try
+        {
+            return body == null || body.isEmpty();
+        }
+        catch (IOException e)
+        {
+            edumfa.error(e);
+            return true;
+        }
+    }
+
+    /**
+     * Move the reader into the object with the given name in the current object.
+     *
+     * @return true if the reader is at the start of the members of the object
+     */
+    private static boolean enterObject(JsonReader reader, String name) throws IOException
+    {
+        if (findName(reader, name) && reader.peek() == JsonToken.BEGIN_OBJECT)
+        {
+            reader.beginObject();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Skip the members of the current object until the one with the given name.
+     *
+     * @return true if the reader is at the value of the member
+     */
+    private static boolean findName(JsonReader reader, String name) throws IOException
+    {
+        while (reader.hasNext())
+        {
+            if (name.equals(reader.nextName()))
+            {
+                return true;
+            }
+            reader.skipValue();
+        }
+        return false;
+    }
+
+    private boolean readBoolean(JsonReader reader, String name) throws IOException
+    {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BOOLEAN)
+        {
+            return reader.nextBoolean();
+        }
+        skipNonPrimitive(reader, name, token);
+        return false;
+    }
+
+    private int readInt(JsonReader reader, String name) throws IOException
+    {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER)
+        {
+            String number = reader.nextString();
+            try
+            {
+                return Integer.parseInt(number);
+            }
+            catch (NumberFormatException e)
+            {
+                return new BigDecimal(number).intValue();
+            }
+        }
+        skipNonPrimitive(reader, name, token);
+        return 0;
+    }
+
+    private String readString(JsonReader reader, String name) throws IOException
+    {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING)
+        {
+            return reader.nextString();
+        }
+        skipNonPrimitive(reader, name, token);
+        return "";
+    }
+
+    private void skipNonPrimitive(JsonReader reader, String name, JsonToken token) throws IOException
+    {
+        if (token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY)
+        {
+            edumfa.error("Cannot get " + name + " from JSON");
+        }
+        reader.skipValue();
+    }
+
+    private void readStringArray(JsonReader reader, List<String> list) throws IOException
+    {
+        reader.beginArray();
+        while (reader.hasNext())
+        {
+            JsonToken token = reader.peek();
+            if (token == JsonToken.STRING || token == JsonToken.NUMBER)
+            {
+                list.add(reader.nextString());
+            }
+            else if (token == JsonToken.BOOLEAN)
+            {
+                list.add(String.valueOf(reader.nextBoolean()));
+            }
+            else
+            {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+    }
+
+    private Map<String, String> readStringObject(JsonReader reader) throws IOException
+    {
+        Map<String, String> map = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String name = reader.nextName();
+            map.put(name, readString(reader, name));
+        }
+        reader.endObject();
+        return map;
+    }
+
     private boolean getBoolean(JsonObject obj, String name)
     {
         JsonPrimitive primitive = getPrimitiveOrNull(obj, name);
@@ -0,0 +1,154 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import okhttp3.ResponseBody;
+
+/**
+ * Body of a response of the server. The json is parsed while it is read from the connection. The text of the body is
+ * only read if it is requested before parsing, e.g. for the log or {@link EMResponse#rawMessage}.
+ */
+class JsonBody
+{
+    private final ResponseBody body;
+    private String text;
+    private boolean streamed = false;
+    private IOException failure;
+
+    private JsonBody(ResponseBody body, String text)
+    {
+        this.body = body;
+        this.text = text;
+    }
+
+    static JsonBody of(ResponseBody body)
+    {
+        return new JsonBody(body, null);
+    }
+
+    static JsonBody of(String text)
+    {
+        return new JsonBody(null, text);
+    }
+
+    /**
+     * Read the whole body as text, unless it is already being parsed from the connection.
+     *
+     * @return the text of the body or null if it was parsed without keeping the text
+     */
+    String text() throws IOException
+    {
+        if (text == null && !streamed)
+        {
+            try
+            {
+                text = body.string();
+            }
+            catch (IOException e)
+            {
+                failure = e;
+                throw e;
+            }
+        }
+        return text;
+    }
+
+    /**
+     * @return the text of the body if it was read, without reading it otherwise
+     */
+    String keptText()
+    {
+        return text;
+    }
+
+    boolean isEmpty() throws IOException
+    {
+        if (text != null || streamed)
+        {
+            return text != null && text.isEmpty();
+        }
+        try
+        {
+            return body.source().exhausted();
+        }
+        catch (IOException e)
+        {
+            failure = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Create a reader for the json, which is as lenient as {@link com.google.gson.JsonParser#parseString(String)}. If the
+     * text was not read, the reader reads from the connection.
+     */
+    JsonReader newReader()
+    {
+        Reader reader;
+        if (text != null)
+        {
+            reader = new StringReader(text);
+        }
+        else
+        {
+            streamed = true;
+            reader = new FilterReader(body.charStream())
+            {
+                @Override
+                public int read(char[] buffer, int offset, int length) throws IOException
+                {
+                    try
+                    {
+                        return super.read(buffer, offset, length);
+                    }
+                    catch (IOException e)
+                    {
+                        failure = e;
+                        throw e;
+                    }
+                }
+            };
+        }
+        JsonReader jsonReader = new JsonReader(reader);
+        jsonReader.setStrictness(Strictness.LENIENT);
+        return jsonReader;
+    }
+
+    /**
+     * The parsers log errors of the json and return what they could read, so an error of the connection while the body
+     * was parsed is kept here, in order to report it like an error before the response was received.
+     *
+     * @return the error that occurred while reading from the connection, or null
+     */
+    IOException failure()
+    {
+        return failure;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the recent response times per endpoint, so that percentiles of the latency can be used as delay for hedged requests.
+ */
+class LatencyTracker
+{
+    // Number of response times kept per endpoint
+    private static final int SAMPLES = 128;
+    // Below this number of response times, no percentile is reported
+    private static final int MINIMUM_SAMPLES = 20;
+
+    private final ConcurrentHashMap<String, Samples> samples = new ConcurrentHashMap<>();
+
+    void record(String endpoint, long latencyMs)
+    {
+        samples.computeIfAbsent(endpoint, k -> new Samples()).add(latencyMs);
+    }
+
+    /**
+     * @param endpoint   endpoint of the requests
+     * @param percentile percentile between 1 and 100
+     * @return the response time in milliseconds that the given percentage of the recent requests did not exceed, or -1
+     * if not enough requests were recorded yet
+     */
+    long percentile(String endpoint, int percentile)
+    {
+        Samples s = samples.get(endpoint);
+        return s != null ? s.percentile(percentile) : -1;
+    }
+
+    private static class Samples
+    {
+        private final long[] values = new long[SAMPLES];
+        private int next = 0;
+        private int count = 0;
+
+        synchronized void add(long value)
+        {
+            values[next] = value;
+            next = (next + 1) % values.length;
+            count = Math.min(count + 1, values.length);
+        }
+
+        long percentile(int percentile)
+        {
+            long[] sorted;
+            synchronized (this)
+            {
+                if (count < MINIMUM_SAMPLES)
+                {
+                    return -1;
+                }
+                sorted = Arrays.copyOf(values, count);
+            }
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
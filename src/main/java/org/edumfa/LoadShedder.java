@@ -0,0 +1,76 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+/**
+ * Rejects requests at once if they would wait too long for a thread of the pool. The wait is predicted from the number
+ * of queued requests and the average time a request occupies a thread. A login that has to wait that long has already
+ * failed for the user, so it is better to tell the user to try again than to let the request use up resources.
+ */
+class LoadShedder
+{
+    // Weight of the latest service time in the moving average
+    private static final double WEIGHT = 0.2;
+
+    private final long maxQueueWaitMs;
+    private final EMMetrics metrics;
+    private volatile double serviceTimeMs = 0;
+
+    /**
+     * @param maxQueueWaitMs maximum predicted time in milliseconds that a request may wait for a thread
+     */
+    LoadShedder(long maxQueueWaitMs, EMMetrics metrics)
+    {
+        this.maxQueueWaitMs = maxQueueWaitMs;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Check whether a request can be queued.
+     *
+     * @param context context of the call, the request is also rejected if it would not start before its deadline
+     * @param queued  number of requests that already wait for a thread
+     * @param threads maximum number of threads of the pool
+     * @throws EMClientException if the predicted wait is too long
+     */
+    void admit(RequestContext context, int queued, int threads) throws EMClientException
+    {
+        double predictedWaitMs = queued * serviceTimeMs / Math.max(1, threads);
+        if (predictedWaitMs > Math.min(maxQueueWaitMs, context.remainingMs()))
+        {
+            metrics.requestShed();
+            throw new EMClientException(EMError.CLIENT_OVERLOADED, "The request to " + context.path() + " was rejected because it would wait about "
+                                                                   + (long) predictedWaitMs + "ms for a thread.");
+        }
+    }
+
+    /**
+     * @param serviceTimeMs time in milliseconds that a request occupied a thread of the pool
+     */
+    synchronized void record(double serviceTimeMs)
+    {
+        double average = this.serviceTimeMs;
+        this.serviceTimeMs = average == 0 ? serviceTimeMs : average + (serviceTimeMs - average) * WEIGHT;
+    }
+}
@@ -0,0 +1,573 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of the thread pool that serves the requests by their {@link Priority} instead of in the order they were
+ * submitted, so that a user who is waiting for /validate/check does not wait behind background requests. To keep all
+ * requests moving, a request that waited longer than the configured time is served next regardless of its priority.
+ * <p>
+ * Within a priority, each tenant has its own queue and the tenants take turns (deficit round-robin): a tenant with the
+ * weight n gets up to n requests served per turn, so a tenant with many queued requests does not delay the others.
+ * The requests of a tenant are served in order.
+ */
+class PriorityTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable>
+{
+    enum Priority
+    {
+        INTERACTIVE, POLLING, BACKGROUND;
+
+        static Priority of(EMLane lane)
+        {
+            switch (lane)
+            {
+                case POLL:
+                    return POLLING;
+                case ADMIN:
+                    return BACKGROUND;
+                default:
+                    return INTERACTIVE;
+            }
+        }
+    }
+
+    /**
+     * Task of the thread pool that carries the priority and the context of its request. If the deadline of the request
+     * passed or the caller gave up while the task was queued, the task is dropped instead of sending a request that
+     * nobody waits for.
+     */
+    static class Task<V> extends FutureTask<V>
+    {
+        private final RequestContext context;
+        private final Priority priority;
+        private final String tenant;
+        private final EMMetrics metrics;
+
+        Task(Callable<V> callable, RequestContext context, Priority priority, String tenant, EMMetrics metrics)
+        {
+            super(callable);
+            this.context = context;
+            this.priority = priority;
+            this.tenant = tenant;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void run()
+        {
+            EMClientException failure = context.failure();
+            if (failure != null || isCancelled())
+            {
+                metrics.queuedRequestDropped();
+                if (failure != null)
+                {
+                    setException(failure);
+                }
+                return;
+            }
+            super.run();
+        }
+    }
+
+    private final int capacity;
+    private final long maxWaitNanos;
+    private final Map<String, Integer> tenantWeights;
+    private final List<Level> levels = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int count = 0;
+
+    /**
+     * @param capacity      maximum number of queued tasks
+     * @param maxWaitMs     time in milliseconds after which a task is served regardless of its priority
+     * @param tenantWeights weights of the tenants, the others have the weight 1
+     */
+    PriorityTaskQueue(int capacity, long maxWaitMs, Map<String, Integer> tenantWeights)
+    {
+        this.capacity = capacity;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        this.tenantWeights = tenantWeights;
+        for (int i = 0; i < Priority.values().length; i++)
+        {
+            levels.add(new Level());
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task)
+    {
+        if (task == null)
+        {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try
+        {
+            if (count >= capacity)
+            {
+                return false;
+            }
+            enqueue(task);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        if (task == null)
+        {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try
+        {
+            while (count >= capacity)
+            {
+                if (nanos <= 0)
+                {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(task);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException
+    {
+        if (task == null)
+        {
+            throw new NullPointerException();
+        }
+        lock.lockInterruptibly();
+        try
+        {
+            while (count >= capacity)
+            {
+                notFull.await();
+            }
+            enqueue(task);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll()
+    {
+        lock.lock();
+        try
+        {
+            return count > 0 ? dequeue() : null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try
+        {
+            while (count == 0)
+            {
+                if (nanos <= 0)
+                {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException
+    {
+        lock.lockInterruptibly();
+        try
+        {
+            while (count == 0)
+            {
+                notEmpty.await();
+            }
+            return dequeue();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek()
+    {
+        lock.lock();
+        try
+        {
+            return count > 0 ? levels.get(nextLevel()).peek().task : null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object task)
+    {
+        lock.lock();
+        try
+        {
+            for (Level level : levels)
+            {
+                if (level.remove(task))
+                {
+                    count--;
+                    notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        lock.lock();
+        try
+        {
+            return count;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity()
+    {
+        lock.lock();
+        try
+        {
+            return capacity - count;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c)
+    {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements)
+    {
+        lock.lock();
+        try
+        {
+            int drained = 0;
+            while (count > 0 && drained < maxElements)
+            {
+                c.add(dequeue());
+                drained++;
+            }
+            return drained;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return iterator over a snapshot of the queued tasks in the order of their priority
+     */
+    @Override
+    public Iterator<Runnable> iterator()
+    {
+        List<Runnable> snapshot = new ArrayList<>();
+        lock.lock();
+        try
+        {
+            for (Level level : levels)
+            {
+                for (TenantQueue queue : level.turns)
+                {
+                    for (Entry entry : queue.entries)
+                    {
+                        snapshot.add(entry.task);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        Iterator<Runnable> tasks = snapshot.iterator();
+        return new Iterator<Runnable>()
+        {
+            private Runnable last;
+
+            @Override
+            public boolean hasNext()
+            {
+                return tasks.hasNext();
+            }
+
+            @Override
+            public Runnable next()
+            {
+                last = tasks.next();
+                return last;
+            }
+
+            @Override
+            public void remove()
+            {
+                PriorityTaskQueue.this.remove(last);
+            }
+        };
+    }
+
+    private void enqueue(Runnable task)
+    {
+        Priority priority = task instanceof Task ? ((Task<?>) task).priority : Priority.BACKGROUND;
+        String tenant = task instanceof Task ? ((Task<?>) task).tenant : "";
+        levels.get(priority.ordinal()).add(new Entry(task, tenant, System.nanoTime()));
+        count++;
+        notEmpty.signal();
+    }
+
+    private Runnable dequeue()
+    {
+        Runnable task = levels.get(nextLevel()).poll().task;
+        count--;
+        notFull.signal();
+        return task;
+    }
+
+    /**
+     * @return index of the level whose first task is served next, there has to be at least one task
+     */
+    private int nextLevel()
+    {
+        // The level with the task that waited longest beyond the limit goes first, otherwise the one with the highest
+        // priority. Within the level, the tenants keep taking turns, so that the waiting task is reached.
+        long now = System.nanoTime();
+        int next = -1;
+        long oldest = 0;
+        for (int i = 0; i < levels.size(); i++)
+        {
+            Entry entry = levels.get(i).oldest();
+            if (entry != null && now - entry.enqueuedAt >= maxWaitNanos && (next < 0 || entry.enqueuedAt - oldest < 0))
+            {
+                next = i;
+                oldest = entry.enqueuedAt;
+            }
+        }
+        if (next >= 0)
+        {
+            return next;
+        }
+        for (int i = 0; i < levels.size(); i++)
+        {
+            if (levels.get(i).peek() != null)
+            {
+                return i;
+            }
+        }
+        throw new IllegalStateException("The queue is empty");
+    }
+
+    /**
+     * Tasks of one priority, in one queue per tenant. Only accessed while holding the lock.
+     */
+    private class Level
+    {
+        private final Map<String, TenantQueue> tenants = new HashMap<>();
+        // Tenants with queued tasks, the first one is served next
+        private final ArrayDeque<TenantQueue> turns = new ArrayDeque<>();
+
+        void add(Entry entry)
+        {
+            TenantQueue queue = tenants.get(entry.tenant);
+            if (queue == null)
+            {
+                queue = new TenantQueue(entry.tenant);
+                tenants.put(entry.tenant, queue);
+                turns.add(queue);
+            }
+            queue.entries.add(entry);
+        }
+
+        /**
+         * @return the task that is served next from this level, or null if it is empty
+         */
+        Entry peek()
+        {
+            TenantQueue queue = turns.peek();
+            return queue != null ? queue.entries.peek() : null;
+        }
+
+        Entry poll()
+        {
+            TenantQueue queue = turns.peek();
+            if (queue.deficit <= 0)
+            {
+                // The turn of the tenant starts
+                queue.deficit = Math.max(1, tenantWeights.getOrDefault(queue.tenant, 1));
+            }
+            Entry entry = queue.entries.poll();
+            queue.deficit--;
+            if (queue.entries.isEmpty())
+            {
+                turns.poll();
+                tenants.remove(queue.tenant);
+            }
+            else if (queue.deficit <= 0)
+            {
+                // The turn is over, the tenant has to wait for the others
+                turns.add(turns.poll());
+            }
+            return entry;
+        }
+
+        /**
+         * @return the task of this level that waited longest, which is the first task of one of the tenants, or null if
+         * the level is empty
+         */
+        Entry oldest()
+        {
+            Entry oldest = null;
+            for (TenantQueue queue : turns)
+            {
+                Entry entry = queue.entries.peek();
+                if (oldest == null || entry.enqueuedAt - oldest.enqueuedAt < 0)
+                {
+                    oldest = entry;
+                }
+            }
+            return oldest;
+        }
+
+        boolean remove(Object task)
+        {
+            for (TenantQueue queue : turns)
+            {
+                Iterator<Entry> entries = queue.entries.iterator();
+                while (entries.hasNext())
+                {
+                    if (entries.next().task == task)
+                    {
+                        entries.remove();
+                        if (queue.entries.isEmpty())
+                        {
+                            turns.remove(queue);
+                            tenants.remove(queue.tenant);
+                        }
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class TenantQueue
+    {
+        private final String tenant;
+        private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        // Number of tasks the tenant may still take in its current turn
+        private int deficit = 0;
+
+        TenantQueue(String tenant)
+        {
+            this.tenant = tenant;
+        }
+    }
+
+    private static class Entry
+    {
+        private final Runnable task;
+        private final String tenant;
+        private final long enqueuedAt;
+
+        Entry(Runnable task, String tenant, long enqueuedAt)
+        {
+            this.task = task;
+            this.tenant = tenant;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+
+/**
+ * State of a single call of the client, shared by all http requests that are needed to complete it, e.g. /auth and the
+ * actual request. The deadline covers the time in the queue of the thread pool as well as the requests themselves.
+ * If the caller gives up, the call is cancelled and so are the http requests that are still running.
+ */
+class RequestContext
+{
+    private final String path;
+    private final String tenant;
+    private final long timeoutMs;
+    // Based on System.nanoTime(), so it is not affected by changes of the system clock
+    private final long deadline;
+    private final List<Call> calls = new ArrayList<>();
+    private final List<Runnable> cancelListeners = new ArrayList<>();
+    private volatile boolean cancelled = false;
+
+    RequestContext(String path, String tenant, long timeoutMs)
+    {
+        this.path = path;
+        this.tenant = tenant;
+        this.timeoutMs = timeoutMs;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    String path()
+    {
+        return path;
+    }
+
+    /**
+     * @return tenant on whose behalf the call is made, empty if unknown
+     */
+    String tenant()
+    {
+        return tenant;
+    }
+
+    /**
+     * @return milliseconds until the deadline, at least 1 so that it can be used as timeout without disabling it
+     */
+    long remainingMs()
+    {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    boolean isExpired()
+    {
+        return deadline - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @return whether the call was cancelled
+     */
+    boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * @return the reason why the call cannot continue, or null if it is still active
+     */
+    EMClientException failure()
+    {
+        if (isExpired())
+        {
+            return timeout();
+        }
+        if (cancelled)
+        {
+            return cancelledException();
+        }
+        return null;
+    }
+
+    /**
+     * @throws EMClientException if the deadline has passed or the call was cancelled
+     */
+    void checkActive() throws EMClientException
+    {
+        EMClientException failure = failure();
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Register an http request of this call, so that it can be cancelled. If the call is already cancelled, so is the request.
+     *
+     * @param call okhttp call
+     */
+    void register(Call call)
+    {
+        synchronized (calls)
+        {
+            if (!cancelled)
+            {
+                calls.add(call);
+                return;
+            }
+        }
+        call.cancel();
+    }
+
+    /**
+     * Run the listener when the call is cancelled, e.g. to stop waiting for a result that is shared with other calls.
+     * If the call is already cancelled, the listener runs immediately.
+     */
+    void onCancel(Runnable listener)
+    {
+        synchronized (calls)
+        {
+            if (!cancelled)
+            {
+                cancelListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Cancel the call and the http requests that were started for it.
+     */
+    void cancel()
+    {
+        List<Call> toCancel;
+        List<Runnable> listeners;
+        synchronized (calls)
+        {
+            if (cancelled)
+            {
+                return;
+            }
+            cancelled = true;
+            toCancel = new ArrayList<>(calls);
+            calls.clear();
+            listeners = new ArrayList<>(cancelListeners);
+            cancelListeners.clear();
+        }
+        toCancel.forEach(Call::cancel);
+        listeners.forEach(Runnable::run);
+    }
+
+    EMClientException timeout()
+    {
+        return new EMClientException(EMError.CLIENT_TIMEOUT, "The request to " + path + " did not complete within " + timeoutMs + " ms.");
+    }
+
+    EMClientException cancelledException()
+    {
+        return new EMClientException(EMError.CLIENT_CANCELLED, "The request to " + path + " was cancelled.");
+    }
+}
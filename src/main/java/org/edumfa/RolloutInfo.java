@@ -37,6 +37,13 @@ public class RolloutInfo
 
     public EMError error = null;
 
+    static RolloutInfo fromError(EMError error)
+    {
+        RolloutInfo rinfo = new RolloutInfo();
+        rinfo.error = error;
+        return rinfo;
+    }
+
     public static class GoogleURL
     {
         public String description = "", img = "", value = "";
@@ -0,0 +1,259 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The edumfa servers the client sends its requests to. Each request goes to the server with the lowest expected latency,
+ * which is the moving average of its response times weighted by the number of requests it is currently processing.
+ * Servers that could not be reached are only used if no other server is left, until a request or a health probe
+ * reaches them again. Servers whose circuit breaker is open or that asked the client to wait are not used at all.
+ */
+class ServerPool
+{
+    private final List<Server> servers = new ArrayList<>();
+
+    ServerPool(EMConfig config)
+    {
+        for (String url : config.serverURLs)
+        {
+            servers.add(new Server(url, new CircuitBreaker(config.circuitBreakerFailureRatePercent, config.circuitBreakerMinimumRequests,
+                                                           config.circuitBreakerOpenDurationMs)));
+        }
+    }
+
+    List<Server> servers()
+    {
+        return servers;
+    }
+
+    int size()
+    {
+        return servers.size();
+    }
+
+    /**
+     * @return milliseconds until a server accepts requests again after it asked the client to wait, 0 if a server
+     * accepts requests now
+     */
+    long throttledForMs()
+    {
+        long throttledForMs = Long.MAX_VALUE;
+        for (Server server : servers)
+        {
+            throttledForMs = Math.min(throttledForMs, server.throttledForMs());
+        }
+        return servers.isEmpty() ? 0 : throttledForMs;
+    }
+
+    /**
+     * Select the server for the next attempt of a request. The outcome of the request has to be passed to the server.
+     *
+     * @param exclude servers that were already tried for the request
+     * @return the server with the lowest expected latency, or null if all servers are excluded or their circuit is open
+     */
+    Server select(Collection<Server> exclude)
+    {
+        Collection<Server> skipped = exclude;
+        while (true)
+        {
+            Server selected = select(skipped, true);
+            if (selected == null)
+            {
+                selected = select(skipped, false);
+            }
+            if (selected == null || selected.circuitBreaker.tryAcquire())
+            {
+                return selected;
+            }
+            if (skipped == exclude)
+            {
+                skipped = new HashSet<>(exclude);
+            }
+            skipped.add(selected);
+        }
+    }
+
+    private Server select(Collection<Server> exclude, boolean healthyOnly)
+    {
+        Server selected = null;
+        double selectedScore = Double.MAX_VALUE;
+        for (Server server : servers)
+        {
+            if ((healthyOnly && !server.isHealthy()) || exclude.contains(server) || server.throttledForMs() > 0)
+            {
+                continue;
+            }
+            double score = server.score();
+            if (score < selectedScore)
+            {
+                selected = server;
+                selectedScore = score;
+            }
+        }
+        return selected;
+    }
+
+    static class Server
+    {
+        // Weight of a new response time in the moving average
+        private static final double EWMA_WEIGHT = 0.3;
+
+        final String url;
+        private final CircuitBreaker circuitBreaker;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile boolean healthy = true;
+        // 0 until the first response was received, so that new servers are tried first
+        private volatile double latencyMs = 0;
+        private volatile long throttledUntil = 0;
+
+        Server(String url, CircuitBreaker circuitBreaker)
+        {
+            this.url = url;
+            this.circuitBreaker = circuitBreaker;
+        }
+
+        boolean isHealthy()
+        {
+            return healthy;
+        }
+
+        double latencyMs()
+        {
+            return latencyMs;
+        }
+
+        /**
+         * Do not send requests to the server for the given time, because it asked the client to wait.
+         *
+         * @param durationMs time in milliseconds
+         */
+        void throttle(long durationMs)
+        {
+            long until = System.currentTimeMillis() + durationMs;
+            if (until > throttledUntil)
+            {
+                throttledUntil = until;
+            }
+        }
+
+        long throttledForMs()
+        {
+            return Math.max(0, throttledUntil - System.currentTimeMillis());
+        }
+
+        private double score()
+        {
+            return (latencyMs + 1) * (inFlight.get() + 1);
+        }
+
+        void requestStarted()
+        {
+            inFlight.incrementAndGet();
+        }
+
+        /**
+         * The selected server was not used, e.g. because the request could not be created.
+         */
+        void requestSkipped()
+        {
+            circuitBreaker.release();
+        }
+
+        /**
+         * @param latencyMs time until the response was received
+         * @param code      http status code of the response, server errors count as failure for the circuit breaker
+         * @param throttled whether the server asked to retry later, which is handled by the throttling and neither counts
+         *                  as failure nor as success for the circuit breaker
+         */
+        void requestCompleted(long latencyMs, int code, boolean throttled)
+        {
+            inFlight.decrementAndGet();
+            reachable(latencyMs);
+            if (throttled)
+            {
+                circuitBreaker.release();
+            }
+            else if (code >= 500)
+            {
+                circuitBreaker.onFailure();
+            }
+            else
+            {
+                circuitBreaker.onSuccess();
+            }
+        }
+
+        /**
+         * @param unreachable whether the server could not be reached at all, in contrast to e.g. a read timeout
+         * @param abandoned   whether the caller gave up on the request, so that the failure is not caused by the server
+         */
+        void requestFailed(boolean unreachable, boolean abandoned)
+        {
+            inFlight.decrementAndGet();
+            if (unreachable)
+            {
+                healthy = false;
+            }
+            if (abandoned)
+            {
+                circuitBreaker.release();
+            }
+            else
+            {
+                circuitBreaker.onFailure();
+            }
+        }
+
+        /**
+         * Record the result of a health probe.
+         *
+         * @param reachable whether the server answered
+         * @param latencyMs time until the answer was received
+         */
+        void probed(boolean reachable, long latencyMs)
+        {
+            if (reachable)
+            {
+                reachable(latencyMs);
+            }
+            else
+            {
+                healthy = false;
+            }
+        }
+
+        private synchronized void reachable(long latencyMs)
+        {
+            latencyMs = Math.max(1, latencyMs);
+            this.latencyMs = this.latencyMs == 0 ? latencyMs : this.latencyMs + EWMA_WEIGHT * (latencyMs - this.latencyMs);
+            this.healthy = true;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent calls with the same key share one request and its result, e.g. several browser tabs that poll the same
+ * transaction at the same moment. Each caller gets its own future, so a caller that cancels its future does not affect
+ * the others. The shared request is only cancelled if all of its callers cancelled their futures. A result that is not
+ * null is also passed to the calls that are made within the reuse window after the request completed.
+ */
+class SingleFlight<K, V>
+{
+    private final Map<K, Flight> flights = new HashMap<>();
+    private final Runnable onJoin;
+    private final long reuseNanos;
+
+    /**
+     * @param onJoin  called whenever a call joins a request that is already in flight or reuses its result
+     * @param reuseMs time in milliseconds for which the result of a completed request is reused, 0 to share only requests
+     *                that are in flight
+     */
+    SingleFlight(Runnable onJoin, long reuseMs)
+    {
+        this.onJoin = onJoin;
+        this.reuseNanos = TimeUnit.MILLISECONDS.toNanos(reuseMs);
+    }
+
+    /**
+     * @param key  identifies the request
+     * @param call starts the request if none is in flight for the key
+     * @return future of the result of the shared request
+     */
+    CompletableFuture<V> get(K key, Supplier<CompletableFuture<V>> call)
+    {
+        Flight flight;
+        boolean leader;
+        synchronized (this)
+        {
+            flight = flights.get(key);
+            leader = flight == null || flight.expired(System.nanoTime());
+            if (leader)
+            {
+                removeExpired();
+                flight = new Flight(key);
+                flights.put(key, flight);
+            }
+            flight.callers++;
+        }
+        if (!leader)
+        {
+            onJoin.run();
+        }
+        Flight joined = flight;
+        CompletableFuture<V> result = flight.result.thenApply(value -> value);
+        result.whenComplete((value, t) ->
+        {
+            if (result.isCancelled())
+            {
+                leave(joined);
+            }
+        });
+        if (leader)
+        {
+            start(flight, call);
+        }
+        return result;
+    }
+
+    private void start(Flight flight, Supplier<CompletableFuture<V>> call)
+    {
+        CompletableFuture<V> request;
+        try
+        {
+            request = call.get();
+        }
+        catch (RuntimeException e)
+        {
+            finish(flight, null, e);
+            return;
+        }
+        boolean abandoned;
+        synchronized (this)
+        {
+            flight.request = request;
+            abandoned = flight.callers == 0;
+        }
+        if (abandoned)
+        {
+            request.cancel(false);
+        }
+        request.whenComplete((value, t) -> finish(flight, value, t));
+    }
+
+    private void finish(Flight flight, V value, Throwable t)
+    {
+        synchronized (this)
+        {
+            if (t == null && value != null && reuseNanos > 0 && flights.get(flight.key) == flight)
+            {
+                flight.completedAt = System.nanoTime();
+            }
+            else
+            {
+                flights.remove(flight.key, flight);
+            }
+        }
+        if (t != null)
+        {
+            flight.result.completeExceptionally(t);
+        }
+        else
+        {
+            flight.result.complete(value);
+        }
+    }
+
+    private void leave(Flight flight)
+    {
+        CompletableFuture<V> request = null;
+        synchronized (this)
+        {
+            flight.callers--;
+            // Nobody waits for the result anymore, later calls start a new request
+            if (flight.callers == 0 && flights.remove(flight.key, flight))
+            {
+                request = flight.request;
+            }
+        }
+        if (request != null)
+        {
+            request.cancel(false);
+        }
+    }
+
+    /**
+     * Called when a new request is started, so that the map only holds the requests in flight and the results of the
+     * reuse window.
+     */
+    private void removeExpired()
+    {
+        long now = System.nanoTime();
+        flights.values().removeIf(flight -> flight.expired(now));
+    }
+
+    private class Flight
+    {
+        private final K key;
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+        // Guarded by the SingleFlight
+        private CompletableFuture<V> request;
+        private int callers = 0;
+        // Set if the result is reused, guarded by the SingleFlight
+        private Long completedAt;
+
+        Flight(K key)
+        {
+            this.key = key;
+        }
+
+        boolean expired(long now)
+        {
+            return completedAt != null && now - completedAt >= reuseNanos;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits the number of calls that each tenant may have in flight, so that one tenant can not use up the capacity of the
+ * client that is shared with the other tenants.
+ */
+class TenantLimiter
+{
+    private final int maxInFlight;
+    private final EMMetrics metrics;
+    private final Map<String, Integer> inFlight = new HashMap<>();
+
+    /**
+     * @param maxInFlight maximum number of calls per tenant, 0 for no limit
+     */
+    TenantLimiter(int maxInFlight, EMMetrics metrics)
+    {
+        this.maxInFlight = maxInFlight > 0 ? maxInFlight : Integer.MAX_VALUE;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Count a call of the tenant. Every acquired call has to be returned with {@link #release(String)}.
+     *
+     * @throws EMClientException if the tenant already has the maximum number of calls in flight
+     */
+    void acquire(RequestContext context) throws EMClientException
+    {
+        synchronized (this)
+        {
+            int calls = inFlight.getOrDefault(context.tenant(), 0);
+            if (calls < maxInFlight)
+            {
+                inFlight.put(context.tenant(), calls + 1);
+                return;
+            }
+        }
+        metrics.tenantRejected();
+        throw new EMClientException(EMError.CLIENT_SATURATED, "The request to " + context.path() + " was rejected because the tenant "
+                                                              + context.tenant() + " has too many requests in flight.");
+    }
+
+    synchronized void release(String tenant)
+    {
+        // Remove the tenants without calls, so that the map does not grow with every tenant that was ever seen
+        inFlight.computeIfPresent(tenant, (key, calls) -> calls > 1 ? calls - 1 : null);
+    }
+}
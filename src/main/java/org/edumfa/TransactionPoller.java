@@ -0,0 +1,157 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the status of a transaction on the shared scheduler of the client. No thread is blocked between the polls or while
+ * waiting for the server, so a single scheduler thread can serve any number of pending transactions.
+ * If the transaction is accepted, it is finalized with a call to /validate/check and the response is passed to the callback.
+ */
+class TransactionPoller
+{
+    private final EduMFA eduMFA;
+    private final ScheduledExecutorService scheduler;
+    private final String transactionId;
+    private final String username;
+    private final long intervalMs;
+    // System.nanoTime() at which polling stops
+    private final long deadline;
+    private final IPIPollTransactionCallback callback;
+    private final CompletableFuture<EMResponse> result = new CompletableFuture<>();
+    private volatile ScheduledFuture<?> nextPoll;
+    private volatile CompletableFuture<?> inFlight;
+
+    TransactionPoller(EduMFA eduMFA, ScheduledExecutorService scheduler, String transactionId, String username, long intervalMs,
+                      long timeoutMs, IPIPollTransactionCallback callback)
+    {
+        this.eduMFA = eduMFA;
+        this.scheduler = scheduler;
+        this.transactionId = transactionId;
+        this.username = username;
+        this.intervalMs = intervalMs;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        this.callback = callback;
+        // Stop polling if the caller cancels the future, including a request that is still running
+        result.whenComplete((response, t) ->
+                            {
+                                ScheduledFuture<?> scheduled = nextPoll;
+                                if (scheduled != null)
+                                {
+                                    scheduled.cancel(false);
+                                }
+                                CompletableFuture<?> request = inFlight;
+                                if (request != null)
+                                {
+                                    request.cancel(false);
+                                }
+                            });
+    }
+
+    /**
+     * Start polling after the first interval.
+     *
+     * @return future that is completed with the response of the finalizing request, or with null if the transaction was not
+     * accepted before the timeout or the client is closed
+     */
+    CompletableFuture<EMResponse> start()
+    {
+        scheduleNextPoll();
+        return result;
+    }
+
+    private void scheduleNextPoll()
+    {
+        if (result.isDone())
+        {
+            return;
+        }
+        if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(intervalMs) - deadline > 0)
+        {
+            eduMFA.log("Polling for transaction " + transactionId + " timed out.");
+            result.complete(null);
+            return;
+        }
+        try
+        {
+            nextPoll = scheduler.schedule(this::poll, intervalMs, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            eduMFA.log("Polling for transaction " + transactionId + " stopped, because the client is closed.");
+            result.complete(null);
+        }
+    }
+
+    private void poll()
+    {
+        if (result.isDone())
+        {
+            return;
+        }
+        CompletableFuture<Boolean> request = eduMFA.pollTransactionAsync(transactionId);
+        inFlight = request;
+        request.whenComplete((accepted, t) ->
+        {
+            if (Boolean.TRUE.equals(accepted))
+            {
+                finalizeTransaction();
+            }
+            else
+            {
+                scheduleNextPoll();
+            }
+        });
+    }
+
+    private void finalizeTransaction()
+    {
+        CompletableFuture<EMResponse> request = eduMFA.validateCheckAsync(username, "", transactionId, Collections.emptyMap());
+        inFlight = request;
+        request.whenComplete((response, t) ->
+        {
+            if (t != null)
+            {
+                eduMFA.error(t);
+            }
+            if (result.complete(response))
+            {
+                try
+                {
+                    callback.transactionFinalized(response);
+                }
+                catch (RuntimeException e)
+                {
+                    eduMFA.error(e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestAsyncLogging
+{
+    private final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+    // Records the thread that writes each message
+    private final IPILogger logger = new EMLogImplementation()
+    {
+        @Override
+        public void log(String message)
+        {
+            threads.add(Thread.currentThread().getName());
+            try
+            {
+                Thread.sleep(1);
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+        }
+    };
+
+    @Test
+    public void testAsyncLogging() throws Exception
+    {
+        EduMFA eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test").sslVerify(false).logger(logger).asyncLogging(8).build();
+
+        for (int i = 0; i < 100; i++)
+        {
+            eduMFA.log("message " + i);
+        }
+        eduMFA.close();
+
+        // Messages that did not fit in the buffer are counted instead of blocking the caller
+        assertTrue(eduMFA.metrics().droppedLogEvents() > 0);
+        assertEquals(100, threads.size() + eduMFA.metrics().droppedLogEvents());
+        assertTrue(threads.stream().allMatch("edumfa-log"::equals));
+    }
+
+    @Test
+    public void testLogAfterClose() throws Exception
+    {
+        EduMFA eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test").sslVerify(false).logger(logger).asyncLogging(8).build();
+        eduMFA.log("before close");
+        eduMFA.close();
+
+        // Once the log is closed, messages are written by the caller and counted
+        eduMFA.log("after close");
+        assertEquals(Arrays.asList("edumfa-log", Thread.currentThread().getName()), threads);
+        assertEquals(1, eduMFA.metrics().droppedLogEvents());
+    }
+}
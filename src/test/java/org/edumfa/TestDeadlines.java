@@ -0,0 +1,130 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.MediaType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestDeadlines
+{
+    private ClientAndServer mockServer;
+    private EduMFA eduMFA;
+    private final String username = "testuser";
+    private final String otp = "123456";
+
+    @Before
+    public void setup()
+    {
+        mockServer = ClientAndServer.startClientAndServer(1080);
+
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                                 .sslVerify(false)
+                                 .logger(new EMLogImplementation())
+                                 .build();
+    }
+
+    @Test
+    public void testTimeout()
+    {
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 2000));
+
+        long start = System.currentTimeMillis();
+        EMResponse response = eduMFA.withTimeout(300, () -> eduMFA.validateCheck(username, otp));
+
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertNotNull(response.error);
+        assertEquals(EMError.CLIENT_TIMEOUT, response.error.code);
+    }
+
+    @Test
+    public void testTimeoutAsync() throws Exception
+    {
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 2000));
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .requestTimeoutMs(300)
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        EMResponse response = eduMFA.validateCheckAsync(username, otp).get(1500, TimeUnit.MILLISECONDS);
+
+        assertNotNull(response.error);
+        assertEquals(EMError.CLIENT_TIMEOUT, response.error.code);
+    }
+
+    @Test
+    public void testInterrupted() throws Exception
+    {
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 2000));
+
+        AtomicReference<EMResponse> response = new AtomicReference<>();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread caller = new Thread(() ->
+                                   {
+                                       response.set(eduMFA.validateCheck(username, otp));
+                                       interrupted.set(Thread.currentThread().isInterrupted());
+                                   });
+        caller.start();
+        Thread.sleep(300);
+        caller.interrupt();
+        caller.join(1000);
+
+        // The caller returns at once and keeps its interrupt flag
+        assertFalse(caller.isAlive());
+        assertTrue(interrupted.get());
+        assertNotNull(response.get().error);
+        assertEquals(EMError.CLIENT_CANCELLED, response.get().error.code);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mockServer.stop();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.MediaType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestExecution
+{
+    private ClientAndServer mockServer;
+    private EduMFA eduMFA;
+    private final String username = "testuser";
+    private final String otp = "123456";
+
+    @Before
+    public void setup()
+    {
+        mockServer = ClientAndServer.startClientAndServer(1080);
+
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                                 .sslVerify(false)
+                                 .logger(new EMLogImplementation())
+                                 .build();
+    }
+
+    @Test
+    public void testVirtualThreads()
+    {
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .virtualThreads()
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 50));
+
+        // Works with or without virtual threads, depending on the version of Java
+        EMResponse response = eduMFA.validateCheck(username, otp);
+        assertNotNull(response);
+        assertTrue(response.value);
+
+        // The http client does not limit the requests to the size of the thread pool
+        assertEquals(256, eduMFA.configuration().maxRequests);
+        assertEquals(256, eduMFA.configuration().maxRequestsPerHost);
+        assertEquals(256, eduMFA.configuration().maxIdleConnections);
+    }
+
+    @Test
+    public void testSaturated()
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .executor(executor)
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        EMResponse response = eduMFA.validateCheck(username, otp);
+
+        // The rejected request is returned as error instead of throwing
+        assertNotNull(response);
+        assertNotNull(response.error);
+        assertEquals(EMError.CLIENT_SATURATED, response.error.code);
+        assertFalse(response.value);
+    }
+
+    @Test
+    public void testHttpClientLimits()
+    {
+        // The thread pool limits the synchronous methods, but not the non-blocking ones
+        assertEquals(64, eduMFA.configuration().maxRequests);
+        assertEquals(64, eduMFA.configuration().maxRequestsPerHost);
+        assertEquals(64, eduMFA.configuration().maxIdleConnections);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test").sslVerify(false).executor(executor).build();
+        assertEquals(256, eduMFA.configuration().maxRequests);
+        assertEquals(256, eduMFA.configuration().maxRequestsPerHost);
+        executor.shutdown();
+
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test").sslVerify(false).directExecution().maxRequests(100).build();
+        assertEquals(100, eduMFA.configuration().maxRequestsPerHost);
+        assertEquals(100, eduMFA.configuration().maxIdleConnections);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mockServer.stop();
+    }
+}
@@ -23,13 +23,21 @@
  * */
 package org.edumfa;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
 import org.mockserver.model.HttpRequest;
 import org.mockserver.model.HttpResponse;
+import org.mockserver.verify.VerificationTimes;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -107,6 +115,227 @@ public class TestGetTokenInfo
         assertEquals(authToken, eduMFA.getAuthToken());
     }
 
+    @Test
+    public void testSuccessAsync() throws Exception
+    {
+        mockServer.when(HttpRequest.request()
+                                   .withPath(EMConstants.ENDPOINT_AUTH)
+                                   .withMethod("POST")
+                                   .withBody("username=" + serviceAccount + "&password=" + servicePassword + "&realm=" + serviceRealm))
+                  .respond(HttpResponse.response().withBody(Utils.postAuthSuccessResponse()));
+
+        mockServer.when(HttpRequest.request()
+                                   .withMethod("GET")
+                                   .withQueryStringParameter("user", username)
+                                   .withPath(EMConstants.ENDPOINT_TOKEN)
+                                   .withHeader("Authorization", authToken)).respond(HttpResponse.response().withBody(Utils.getTokenResponse()));
+
+        List<TokenInfo> tokenInfoList = eduMFA.getTokenInfoAsync(username).get(5, TimeUnit.SECONDS);
+        assertNotNull(tokenInfoList);
+        assertEquals(1, tokenInfoList.size());
+        assertEquals("OATH00123564", tokenInfoList.get(0).serial);
+    }
+
+    @Test
+    public void testSuccessDirectExecution()
+    {
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .serviceAccount(serviceAccount, servicePassword)
+                       .serviceRealm(serviceRealm)
+                       .sslVerify(false)
+                       .directExecution()
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        mockServer.when(HttpRequest.request()
+                                   .withPath(EMConstants.ENDPOINT_AUTH)
+                                   .withMethod("POST")
+                                   .withBody("username=" + serviceAccount + "&password=" + servicePassword + "&realm=" + serviceRealm))
+                  .respond(HttpResponse.response().withBody(Utils.postAuthSuccessResponse()));
+
+        mockServer.when(HttpRequest.request()
+                                   .withMethod("GET")
+                                   .withQueryStringParameter("user", username)
+                                   .withPath(EMConstants.ENDPOINT_TOKEN)
+                                   .withHeader("Authorization", authToken)).respond(HttpResponse.response().withBody(Utils.getTokenResponse()));
+
+        List<TokenInfo> tokenInfoList = eduMFA.getTokenInfo(username);
+        assertNotNull(tokenInfoList);
+        assertEquals(1, tokenInfoList.size());
+        assertEquals("OATH00123564", tokenInfoList.get(0).serial);
+        assertEquals(authToken, eduMFA.getAuthToken());
+    }
+
+    @Test
+    public void testDirectExecutionTimeout()
+    {
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .serviceAccount(serviceAccount, servicePassword)
+                       .serviceRealm(serviceRealm)
+                       .sslVerify(false)
+                       .directExecution()
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        mockServer.when(HttpRequest.request().withPath(EMConstants.ENDPOINT_AUTH).withMethod("POST"))
+                  .respond(HttpResponse.response().withBody(Utils.postAuthSuccessResponse()));
+        mockServer.when(HttpRequest.request().withMethod("GET").withPath(EMConstants.ENDPOINT_TOKEN))
+                  .respond(HttpResponse.response().withBody(Utils.getTokenResponse()).withDelay(TimeUnit.MILLISECONDS, 3000));
+        // The first request to the mock server is slower
+        assertEquals(authToken, eduMFA.getAuthToken());
+
+        // The deadline ends the http call that runs on the calling thread
+        long start = System.nanoTime();
+        assertNull(eduMFA.withTimeout(500, () -> eduMFA.getTokenInfo(username)));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1500);
+    }
+
+    @Test
+    public void testAuthTokenCached()
+    {
+        // JWT that expires in one hour
+        String payload = "{\"username\":\"admin\",\"exp\":" + (System.currentTimeMillis() / 1000 + 3600) + "}";
+        String jwt = "eyJ0eXAiOiJKV1QiLCJhbGciOiJIUzI1NiJ9." +
+                     Base64.getUrlEncoder().withoutPadding().encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + ".c2lnbmF0dXJl";
+
+        HttpRequest authRequest = HttpRequest.request().withPath(EMConstants.ENDPOINT_AUTH).withMethod("POST");
+        mockServer.when(authRequest).respond(HttpResponse.response().withBody(Utils.postAuthSuccessResponse(jwt)));
+        HttpRequest tokenRequest = HttpRequest.request()
+                                              .withMethod("GET")
+                                              .withQueryStringParameter("user", username)
+                                              .withPath(EMConstants.ENDPOINT_TOKEN)
+                                              .withHeader("Authorization", jwt);
+        // The first request with the token is rejected, so the token has to be requested again
+        mockServer.when(tokenRequest, Times.once()).respond(HttpResponse.response().withStatusCode(401));
+        mockServer.when(tokenRequest).respond(HttpResponse.response().withBody(Utils.getTokenResponse()));
+
+        for (int i = 0; i < 3; i++)
+        {
+            List<TokenInfo> tokenInfoList = eduMFA.getTokenInfo(username);
+            assertNotNull(tokenInfoList);
+            assertEquals(1, tokenInfoList.size());
+        }
+
+        // One call for the initial token, one after the 401, then the cached token is used
+        mockServer.verify(authRequest, VerificationTimes.exactly(2));
+        mockServer.verify(tokenRequest, VerificationTimes.exactly(4));
+    }
+
+    @Test
+    public void testSharedAuthTokenRequest() throws Exception
+    {
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .serviceAccount(serviceAccount, servicePassword)
+                       .serviceRealm(serviceRealm)
+                       .sslVerify(false)
+                       .directExecution()
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        HttpRequest authRequest = HttpRequest.request().withPath(EMConstants.ENDPOINT_AUTH).withMethod("POST");
+        mockServer.when(authRequest)
+                  .respond(HttpResponse.response().withBody(Utils.postAuthSuccessResponse()).withDelay(TimeUnit.MILLISECONDS, 1000));
+        mockServer.when(HttpRequest.request()
+                                   .withMethod("GET")
+                                   .withQueryStringParameter("user", username)
+                                   .withPath(EMConstants.ENDPOINT_TOKEN)
+                                   .withHeader("Authorization", authToken)).respond(HttpResponse.response().withBody(Utils.getTokenResponse()));
+
+        // The first caller sends the request for the auth token on its own thread, its short deadline does not apply to it
+        AtomicReference<List<TokenInfo>> impatient = new AtomicReference<>();
+        Thread caller = new Thread(() -> impatient.set(eduMFA.withTimeout(300, () -> eduMFA.getTokenInfo(username))));
+        long start = System.nanoTime();
+        caller.start();
+        Thread.sleep(100);
+
+        List<TokenInfo> tokenInfoList = eduMFA.getTokenInfo(username);
+        caller.join();
+
+        // The first caller is past its deadline when the token arrives, the second one still receives the token info
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 1000);
+        assertNull(impatient.get());
+        assertNotNull(tokenInfoList);
+        assertEquals(1, tokenInfoList.size());
+        mockServer.verify(authRequest, VerificationTimes.exactly(1));
+    }
+
+    @Test
+    public void testDirectExecutionInterrupted() throws Exception
+    {
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .serviceAccount(serviceAccount, servicePassword)
+                       .serviceRealm(serviceRealm)
+                       .sslVerify(false)
+                       .directExecution()
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        mockServer.when(HttpRequest.request().withPath(EMConstants.ENDPOINT_AUTH).withMethod("POST"))
+                  .respond(HttpResponse.response().withBody(Utils.postAuthSuccessResponse()).withDelay(TimeUnit.MILLISECONDS, 2000));
+
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread caller = new Thread(() ->
+                                   {
+                                       eduMFA.getTokenInfo(username);
+                                       interrupted.set(Thread.currentThread().isInterrupted());
+                                   });
+        caller.start();
+        Thread.sleep(300);
+        caller.interrupt();
+        caller.join(1000);
+
+        // The caller stops waiting for the auth token at once and keeps its interrupt flag
+        assertFalse(caller.isAlive());
+        assertTrue(interrupted.get());
+    }
+
+    @Test
+    public void testForEachTokenInfo()
+    {
+        mockServer.when(HttpRequest.request().withPath(EMConstants.ENDPOINT_AUTH).withMethod("POST"))
+                  .respond(HttpResponse.response().withBody(Utils.postAuthSuccessResponse()));
+        mockServer.when(HttpRequest.request()
+                                   .withMethod("GET")
+                                   .withQueryStringParameter("user", username)
+                                   .withPath(EMConstants.ENDPOINT_TOKEN)
+                                   .withHeader("Authorization", authToken)).respond(HttpResponse.response().withBody(Utils.getTokenResponse()));
+
+        List<TokenInfo> visited = new ArrayList<>();
+        assertTrue(eduMFA.forEachTokenInfo(username, visited::add));
+        assertEquals(1, visited.size());
+        assertEquals("OATH00123564", visited.get(0).serial);
+        assertEquals("deflocal", visited.get(0).resolver);
+        assertTrue(visited.get(0).rawJson.contains("OATH00123564"));
+    }
+
+    @Test
+    public void testForEachTokenInfoMalformed()
+    {
+        mockServer.when(HttpRequest.request().withPath(EMConstants.ENDPOINT_AUTH).withMethod("POST"))
+                  .respond(HttpResponse.response().withBody(Utils.postAuthSuccessResponse()));
+        HttpRequest tokenRequest = HttpRequest.request().withMethod("GET").withPath(EMConstants.ENDPOINT_TOKEN);
+        // The second token cannot be read, then the tokens are missing, then the response is no json at all
+        mockServer.when(tokenRequest, Times.once())
+                  .respond(HttpResponse.response().withBody(Utils.getTokenResponse().replace("}]}}", "},42]}}")));
+        mockServer.when(tokenRequest, Times.once()).respond(HttpResponse.response().withBody("{\"result\":{\"status\":true,\"value\":{}}}"));
+        mockServer.when(tokenRequest, Times.once()).respond(HttpResponse.response().withBody("<html>"));
+        mockServer.when(tokenRequest).respond(HttpResponse.response().withBody(Utils.getTokenNoTokenResponse()));
+
+        List<TokenInfo> visited = new ArrayList<>();
+        assertFalse(eduMFA.forEachTokenInfo(username, visited::add));
+        assertEquals(1, visited.size());
+        assertEquals("OATH00123564", visited.get(0).serial);
+
+        visited.clear();
+        assertFalse(eduMFA.forEachTokenInfo(username, visited::add));
+        assertFalse(eduMFA.forEachTokenInfo(username, visited::add));
+        assertTrue(visited.isEmpty());
+
+        // A user without tokens is not an error
+        assertTrue(eduMFA.forEachTokenInfo(username, visited::add));
+        assertTrue(visited.isEmpty());
+    }
+
     @Test
     public void testForNoToken()
     {
@@ -0,0 +1,90 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.MediaType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestNonBlocking
+{
+    private ClientAndServer mockServer;
+    private EduMFA eduMFA;
+    private final String username = "testuser";
+    private final String otp = "123456";
+
+    @Before
+    public void setup()
+    {
+        mockServer = ClientAndServer.startClientAndServer(1080);
+
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                                 .sslVerify(false)
+                                 .logger(new EMLogImplementation())
+                                 .build();
+    }
+
+    @Test
+    public void testOTPSuccessAsync() throws Exception
+    {
+        mockServer.when(HttpRequest.request()
+                                   .withMethod("POST")
+                                   .withPath("/validate/check")
+                                   .withBody("user=" + username + "&pass=" + otp))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 50));
+
+        EMResponse response = eduMFA.validateCheckAsync(username, otp).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, response.id);
+        assertEquals("matching 1 tokens", response.message);
+        assertEquals("PISP0001C673", response.serial);
+        assertTrue(response.status);
+        assertTrue(response.value);
+    }
+
+    @Test
+    public void testNoResponseAsync() throws Exception
+    {
+        // No server setup, the future is completed with null like the synchronous call
+        assertNull(eduMFA.validateCheckAsync(username, otp).get(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown()
+    {
+        mockServer.stop();
+    }
+}
@@ -24,6 +24,7 @@
 package org.edumfa;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Before;
@@ -37,7 +38,10 @@ import org.mockserver.model.MediaType;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestPollTransaction
 {
@@ -145,6 +149,33 @@ public class TestPollTransaction
         assertEquals("", pushMessage);
     }
 
+    @Test
+    public void testAsyncPollTransaction() throws Exception
+    {
+        String transactionID = "02659936574063359702";
+        setPollTransactionResponse(false, 2);
+        setPollTransactionResponse(true, 1);
+        setFinalizationResponse(transactionID);
+
+        CompletableFuture<EMResponse> finalized = new CompletableFuture<>();
+        CompletableFuture<EMResponse> result = eduMFA.asyncPollTransaction(transactionID, username, 100, 10000, finalized::complete);
+
+        EMResponse response = finalized.get(10, TimeUnit.SECONDS);
+        assertNotNull(response);
+        assertTrue(response.value);
+        assertSame(response, result.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAsyncPollTransactionTimeout() throws Exception
+    {
+        setPollTransactionResponse(false, 10);
+
+        CompletableFuture<EMResponse> result = eduMFA.asyncPollTransaction("02659936574063359702", username, 100, 500,
+                                                                           response -> fail("The transaction must not be finalized"));
+        assertNull(result.get(5, TimeUnit.SECONDS));
+    }
+
     private void setFinalizationResponse(String transactionID)
     {
         mockServer.when(HttpRequest.request()
@@ -155,7 +186,130 @@ public class TestPollTransaction
                                        .withBody(Utils.foundMatchingChallenge()));
     }
 
+    @Test
+    public void testAsyncPollTransactionClosed() throws Exception
+    {
+        setPollTransactionResponse(false, 1, 500);
+
+        CompletableFuture<EMResponse> result = eduMFA.asyncPollTransaction("02659936574063359702", username, 100, 10000,
+                                                                           response -> fail("The transaction must not be finalized"));
+        // The client is closed while the first poll is running, so the next poll cannot be scheduled anymore
+        Thread.sleep(300);
+        eduMFA.close();
+        assertNull(result.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testHedging()
+    {
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .hedging(90)
+                       .logger(new EMLogImplementation())
+                       .build();
+        // Enough responses to know the usual latency, then a slow one which is overtaken by the hedged request
+        setPollTransactionResponse(false, 20);
+        setPollTransactionResponse(false, 1, 3000);
+        setPollTransactionResponse(true, 1);
+        for (int i = 0; i < 20; i++)
+        {
+            assertFalse(eduMFA.pollTransaction("02659936574063359702"));
+        }
+
+        long start = System.currentTimeMillis();
+        assertTrue(eduMFA.pollTransaction("02659936574063359702"));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(1, eduMFA.metrics().hedgedRequests());
+    }
+
+    @Test
+    public void testRetry()
+    {
+        // The first request to the mock server is slower than the http timeout
+        eduMFA.pollTransaction("0");
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .httpTimeoutMs(500)
+                       .requestTimeoutMs(5000)
+                       .retry(2, 10, 100)
+                       .logger(new EMLogImplementation())
+                       .build();
+        // The first response is too slow
+        setPollTransactionResponse(false, 1, 1500);
+        setPollTransactionResponse(true, 1);
+
+        // The timeout is retried because polling does not change anything on the server
+        assertTrue(eduMFA.pollTransaction("02659936574063359702"));
+        assertEquals(1, eduMFA.metrics().retries());
+    }
+
+    @Test
+    public void testCoalescePolls() throws Exception
+    {
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .coalescePolls(0)
+                       .logger(new EMLogImplementation())
+                       .build();
+        // Only one response is available, so the concurrent polls have to share it
+        setPollTransactionResponse(true, 1, 500);
+
+        CompletableFuture<Boolean> first = eduMFA.pollTransactionAsync("02659936574063359702");
+        CompletableFuture<Boolean> second = eduMFA.pollTransactionAsync("02659936574063359702");
+        CompletableFuture<Boolean> cancelled = eduMFA.pollTransactionAsync("02659936574063359702");
+        cancelled.cancel(true);
+        assertTrue(eduMFA.pollTransaction("02659936574063359702"));
+
+        // Cancelling one of the polls does not affect the others
+        assertTrue(first.get(1000, TimeUnit.MILLISECONDS));
+        assertTrue(second.get(1000, TimeUnit.MILLISECONDS));
+        assertEquals(3, eduMFA.metrics().coalescedPolls());
+    }
+
+    @Test
+    public void testCoalescedPollFailure() throws Exception
+    {
+        // The first request to the mock server is slower than the timeout
+        eduMFA.pollTransaction("0");
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .coalescePolls(0)
+                       .logger(new EMLogImplementation())
+                       .build();
+        setPollTransactionResponse(true, 1, 1500);
+        setPollTransactionResponse(true, 1);
+
+        CompletableFuture<Boolean> first = eduMFA.withTimeout(500, () -> eduMFA.pollTransactionAsync("02659936574063359702"));
+        CompletableFuture<Boolean> second = eduMFA.pollTransactionAsync("02659936574063359702");
+
+        // The shared request timed out, so the second poll sends its own instead of returning false
+        assertFalse(first.get(1000, TimeUnit.MILLISECONDS));
+        assertTrue(second.get(2000, TimeUnit.MILLISECONDS));
+        assertEquals(1, eduMFA.metrics().coalescedPolls());
+    }
+
+    @Test
+    public void testReusePollResult()
+    {
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .coalescePolls(5000)
+                       .logger(new EMLogImplementation())
+                       .build();
+        // Only one response is available, so the second poll has to reuse it
+        setPollTransactionResponse(true, 1);
+
+        assertTrue(eduMFA.pollTransaction("02659936574063359702"));
+        assertTrue(eduMFA.pollTransaction("02659936574063359702"));
+        assertEquals(1, eduMFA.metrics().coalescedPolls());
+    }
+
     private void setPollTransactionResponse(boolean value, int times)
+    {
+        setPollTransactionResponse(value, times, 50);
+    }
+
+    private void setPollTransactionResponse(boolean value, int times, long delayMs)
     {
         String val = value ? "true" : "false";
         mockServer.when(HttpRequest.request()
@@ -170,7 +324,7 @@ public class TestPollTransaction
                                                  "    \"version\": \"privacyIDEA 3.2.1\",\n" +
                                                  "    \"versionnumber\": \"3.2.1\",\n" +
                                                  "    \"signature\": \"rsa_sha256_pss:\"\n" + "}")
-                                       .withDelay(TimeUnit.MILLISECONDS, 50));
+                                       .withDelay(TimeUnit.MILLISECONDS, delayMs));
     }
 
 
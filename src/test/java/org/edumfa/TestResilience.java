@@ -0,0 +1,228 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.MediaType;
+import org.mockserver.verify.VerificationTimes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestResilience
+{
+    private ClientAndServer mockServer;
+    private EduMFA eduMFA;
+    private final String username = "testuser";
+    private final String otp = "123456";
+
+    @Before
+    public void setup()
+    {
+        mockServer = ClientAndServer.startClientAndServer(1080);
+
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                                 .sslVerify(false)
+                                 .logger(new EMLogImplementation())
+                                 .build();
+    }
+
+    @Test
+    public void testFailover()
+    {
+        mockServer.when(HttpRequest.request()
+                                   .withMethod("POST")
+                                   .withPath("/validate/check")
+                                   .withBody("user=" + username + "&pass=" + otp))
+                  .respond(HttpResponse.response().withContentType(MediaType.APPLICATION_JSON).withBody(Utils.matchingOneToken()));
+        // Nothing is listening on the first server
+        eduMFA = EduMFA.newBuilder(Arrays.asList("https://127.0.0.1:1081", "https://127.0.0.1:1080"), "test")
+                       .sslVerify(false)
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        EMResponse response = eduMFA.validateCheck(username, otp);
+
+        assertNull(response.error);
+        assertTrue(response.value);
+        assertEquals("PISP0001C673", response.serial);
+    }
+
+    @Test
+    public void testCircuitBreaker()
+    {
+        // Nothing is listening on this port
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1081", "test")
+                       .sslVerify(false)
+                       .circuitBreaker(50, 2, 10000)
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        assertNull(eduMFA.validateCheck(username, otp));
+        assertNull(eduMFA.validateCheck(username, otp));
+
+        // The circuit is open now, so the request fails without being sent
+        EMResponse response = eduMFA.validateCheck(username, otp);
+        assertNotNull(response.error);
+        assertEquals(EMError.SERVER_UNAVAILABLE, response.error.code);
+        assertEquals(1, eduMFA.metrics().circuitBreakerRejections());
+    }
+
+    @Test
+    public void testCircuitBreakerIgnoresThrottling()
+    {
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response().withStatusCode(503).withHeader("Retry-After", "0"));
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .circuitBreaker(50, 2, 10000)
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        // The throttling is handled separately, so the circuit stays closed
+        for (int i = 0; i < 3; i++)
+        {
+            EMResponse response = eduMFA.validateCheck(username, otp);
+            assertNotNull(response.error);
+            assertEquals(EMError.SERVER_THROTTLED, response.error.code);
+        }
+        assertEquals(0, eduMFA.metrics().circuitBreakerRejections());
+    }
+
+    @Test
+    public void testNoRetryAfterSent()
+    {
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .httpTimeoutMs(500)
+                       .requestTimeoutMs(5000)
+                       .retry(2, 10, 100)
+                       .logger(new EMLogImplementation())
+                       .build();
+        // The first response is too slow
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"), Times.once())
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 1500));
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response().withContentType(MediaType.APPLICATION_JSON).withBody(Utils.matchingOneToken()));
+
+        // The request reached the server, so it must not be sent again
+        assertNull(eduMFA.validateCheck(username, otp));
+        assertEquals(0, eduMFA.metrics().retries());
+        mockServer.verify(HttpRequest.request().withPath("/validate/check"), VerificationTimes.once());
+    }
+
+    @Test
+    public void testNoRetryAfterSentAsync() throws Exception
+    {
+        // The first request to the mock server is slower than the http timeout
+        eduMFA.pollTransaction("0");
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .httpTimeoutMs(500)
+                       .requestTimeoutMs(5000)
+                       .retry(2, 10, 100)
+                       .logger(new EMLogImplementation())
+                       .build();
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 1500));
+
+        // The read timed out after the request was sent, which is not a failure to connect
+        assertNull(eduMFA.validateCheckAsync(username, otp).get(5, TimeUnit.SECONDS));
+        assertEquals(0, eduMFA.metrics().retries());
+        mockServer.verify(HttpRequest.request().withPath("/validate/check"), VerificationTimes.once());
+    }
+
+    @Test
+    public void testRetryConnectFailure()
+    {
+        // Nothing is listening on this port, so the request is never sent and can be retried
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1081", "test")
+                       .sslVerify(false)
+                       .retry(2, 10, 100)
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        assertNull(eduMFA.validateCheck(username, otp));
+        assertEquals(2, eduMFA.metrics().retries());
+    }
+
+    @Test
+    public void testRetryHandshakeTimeout() throws Exception
+    {
+        // The connection is accepted, but the TLS handshake times out, which okhttp reports like a read timeout
+        try (ServerSocket silent = new ServerSocket(0))
+        {
+            eduMFA = EduMFA.newBuilder("https://127.0.0.1:" + silent.getLocalPort(), "test")
+                           .sslVerify(false)
+                           .httpTimeoutMs(300)
+                           .requestTimeoutMs(5000)
+                           .retry(1, 10, 100)
+                           .logger(new EMLogImplementation())
+                           .build();
+
+            assertNull(eduMFA.validateCheck(username, otp));
+            assertEquals(1, eduMFA.metrics().retries());
+        }
+    }
+
+    @Test
+    public void testThrottled()
+    {
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response().withStatusCode(429).withHeader("Retry-After", "2"));
+
+        EMResponse response = eduMFA.validateCheck(username, otp);
+        assertNotNull(response.error);
+        assertEquals(EMError.SERVER_THROTTLED, response.error.code);
+
+        // The server asked to wait longer than the request may take, so it is not sent
+        response = eduMFA.withTimeout(500, () -> eduMFA.validateCheck(username, otp));
+        assertEquals(EMError.SERVER_THROTTLED, response.error.code);
+        mockServer.verify(HttpRequest.request().withPath("/validate/check"), VerificationTimes.once());
+        assertEquals(2, eduMFA.metrics().throttledRequests());
+    }
+
+    @After
+    public void tearDown()
+    {
+        mockServer.stop();
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * * License:  AGPLv3
+ * * This file is part of eduMFA java client. eduMFA java client is a fork of privacyIDEA java client.
+ * * Copyright (c) 2024 eduMFA Project-Team
+ * * Previous authors of the PrivacyIDEA java client:
+ * *
+ * * NetKnights GmbH
+ * * nils.behlen@netknights.it
+ * * lukas.matusiewicz@netknights.it
+ * *
+ * * This code is free software; you can redistribute it and/or
+ * * modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ * * License as published by the Free Software Foundation; either
+ * * version 3 of the License, or any later version.
+ * *
+ * * This code is distributed in the hope that it will be useful,
+ * * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * * GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ * *
+ * * You should have received a copy of the GNU Affero General Public
+ * * License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * */
+package org.edumfa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.MediaType;
+import org.mockserver.verify.VerificationTimes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestScheduling
+{
+    private ClientAndServer mockServer;
+    private EduMFA eduMFA;
+    private final String username = "testuser";
+    private final String otp = "123456";
+
+    @Before
+    public void setup()
+    {
+        mockServer = ClientAndServer.startClientAndServer(1080);
+
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                                 .sslVerify(false)
+                                 .logger(new EMLogImplementation())
+                                 .build();
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception
+    {
+        // The first request to the mock server is slower than the time the limiter waits
+        eduMFA.pollTransaction("0");
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 1000));
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .adaptiveConcurrency(1, 1, 100)
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        CompletableFuture<EMResponse> first = eduMFA.validateCheckAsync(username, otp);
+        // The limit is reached, so these requests wait briefly and are rejected
+        EMResponse second = eduMFA.validateCheckAsync(username, otp).get(1000, TimeUnit.MILLISECONDS);
+        // The rejection is not passed on from the scheduler, which must never block
+        String rejectingThread = eduMFA.validateCheckAsync(username, otp).thenApply(response -> Thread.currentThread().getName())
+                                       .get(1000, TimeUnit.MILLISECONDS);
+
+        assertEquals(EMError.CLIENT_OVERLOADED, second.error.code);
+        assertNotEquals("edumfa-scheduler", rejectingThread);
+        assertNull(first.get(3000, TimeUnit.MILLISECONDS).error);
+        assertEquals(2, eduMFA.metrics().concurrencyLimitRejections());
+        mockServer.verify(HttpRequest.request().withPath("/validate/check"), VerificationTimes.once());
+    }
+
+    @Test
+    public void testBulkhead() throws Exception
+    {
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 1000));
+        mockServer.when(HttpRequest.request().withMethod("GET").withPath("/validate/polltransaction"))
+                  .respond(HttpResponse.response().withContentType(MediaType.APPLICATION_JSON).withBody(Utils.foundMatchingChallenge()));
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .bulkhead(EMLane.VALIDATE, 1, 0)
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        CompletableFuture<EMResponse> first = eduMFA.validateCheckAsync(username, otp);
+        assertEquals(1, eduMFA.metrics().laneInFlight(EMLane.VALIDATE));
+
+        // The validate lane is full, but the other lanes are not affected
+        EMResponse second = eduMFA.validateCheck(username, otp);
+        assertEquals(EMError.CLIENT_SATURATED, second.error.code);
+        assertTrue(eduMFA.pollTransaction("123456"));
+
+        assertNull(first.get(3000, TimeUnit.MILLISECONDS).error);
+        assertEquals(1, eduMFA.metrics().laneRejections(EMLane.VALIDATE));
+        assertEquals(0, eduMFA.metrics().laneRejections(EMLane.POLL));
+        assertEquals(0, eduMFA.metrics().laneInFlight(EMLane.VALIDATE));
+    }
+
+    @Test
+    public void testBulkheadTimeout() throws Exception
+    {
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 1000));
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .bulkhead(EMLane.VALIDATE, 1, 1)
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        CompletableFuture<EMResponse> first = eduMFA.validateCheckAsync(username, otp);
+        // The second call waits in the queue of the lane until its deadline, which is not passed on from the scheduler
+        CompletableFuture<String> timedOutThread = eduMFA.withTimeout(200, () -> eduMFA.validateCheckAsync(username, otp))
+                                                         .thenApply(response ->
+                                                                    {
+                                                                        assertEquals(EMError.CLIENT_TIMEOUT, response.error.code);
+                                                                        return Thread.currentThread().getName();
+                                                                    });
+
+        assertNotEquals("edumfa-scheduler", timedOutThread.get(1000, TimeUnit.MILLISECONDS));
+        assertNull(first.get(3000, TimeUnit.MILLISECONDS).error);
+        assertEquals(0, eduMFA.metrics().laneQueued(EMLane.VALIDATE));
+    }
+
+    @Test
+    public void testPrioritizeRequests() throws Exception
+    {
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 500));
+        mockServer.when(HttpRequest.request().withMethod("GET").withPath("/validate/polltransaction"))
+                  .respond(HttpResponse.response().withContentType(MediaType.APPLICATION_JSON).withBody(Utils.foundMatchingChallenge()));
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .threadPool(1, 1, 10)
+                       .prioritizeRequests(10000)
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        List<String> completed = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService callers = Executors.newFixedThreadPool(3);
+        callers.submit(() -> completed.add(eduMFA.validateCheck(username, otp) != null ? "check" : null));
+        Thread.sleep(100);
+        callers.submit(() -> completed.add(eduMFA.pollTransaction("123456") ? "poll" : null));
+        Thread.sleep(100);
+        callers.submit(() -> completed.add(eduMFA.validateCheck(username, otp) != null ? "check" : null));
+        callers.shutdown();
+        assertTrue(callers.awaitTermination(5, TimeUnit.SECONDS));
+
+        // The second check was queued after the poll, but is served first
+        assertEquals(Arrays.asList("check", "check", "poll"), completed);
+    }
+
+    @Test
+    public void testPriorityMaxWaitWithTenants() throws Exception
+    {
+        EMMetrics metrics = new EMMetrics();
+        PriorityTaskQueue queue = new PriorityTaskQueue(10, 50, Collections.emptyMap());
+        PriorityTaskQueue.Task<String> cancelled = backgroundTask("a", metrics);
+        PriorityTaskQueue.Task<String> waiting = backgroundTask("b", metrics);
+        queue.offer(cancelled);
+        queue.offer(waiting);
+        Thread.sleep(100);
+        // Tenant a has its turn next, but its first task was only just queued
+        PriorityTaskQueue.Task<String> queued = backgroundTask("a", metrics);
+        queue.offer(queued);
+        queue.remove(cancelled);
+        RequestContext context = new RequestContext(EMConstants.ENDPOINT_VALIDATE_CHECK, "a", 10000);
+        PriorityTaskQueue.Task<String> check = new PriorityTaskQueue.Task<>(() -> "check", context, PriorityTaskQueue.Priority.INTERACTIVE, "a",
+                                                                            metrics);
+        queue.offer(check);
+
+        // The task of tenant b waited longer than the limit, so its level goes before the interactive one until it is served
+        assertEquals(queued, queue.poll());
+        assertEquals(waiting, queue.poll());
+        assertEquals(check, queue.poll());
+    }
+
+    private static PriorityTaskQueue.Task<String> backgroundTask(String tenant, EMMetrics metrics)
+    {
+        return new PriorityTaskQueue.Task<>(() -> tenant, new RequestContext(EMConstants.ENDPOINT_TOKEN, tenant, 10000),
+                                            PriorityTaskQueue.Priority.BACKGROUND, tenant, metrics);
+    }
+
+    @Test
+    public void testFairScheduling() throws Exception
+    {
+        // The first request to the mock server is slower, which would change the order of the requests
+        eduMFA.pollTransaction("0");
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 300));
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .threadPool(1, 1, 10)
+                       .fairScheduling(3)
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        List<String> completed = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        for (String tenant : Arrays.asList("a", "a", "a", "b"))
+        {
+            callers.submit(() -> eduMFA.withTenant(tenant, () -> completed.add(eduMFA.validateCheck(username, otp) != null ? tenant : null)));
+            Thread.sleep(50);
+        }
+        // Tenant a already has 3 requests in flight
+        EMResponse rejected = eduMFA.withTenant("a", () -> eduMFA.validateCheck(username, otp));
+        assertEquals(EMError.CLIENT_SATURATED, rejected.error.code);
+        callers.shutdown();
+        assertTrue(callers.awaitTermination(5, TimeUnit.SECONDS));
+
+        // Tenant b was queued last, but does not wait for all requests of tenant a
+        assertEquals(Arrays.asList("a", "a", "b", "a"), completed);
+        assertEquals(1, eduMFA.metrics().tenantRejections());
+    }
+
+    @Test
+    public void testFairSchedulingDefaultTenant() throws Exception
+    {
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 500));
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .fairScheduling(1)
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        ExecutorService callers = Executors.newSingleThreadExecutor();
+        callers.submit(() -> eduMFA.validateCheck("alice", otp));
+        Thread.sleep(100);
+
+        // Without withTenant, each user is a tenant of its own
+        EMResponse rejected = eduMFA.validateCheck("alice", otp);
+        assertEquals(EMError.CLIENT_SATURATED, rejected.error.code);
+        EMResponse response = eduMFA.validateCheck("bob", otp);
+        assertNull(response.error);
+        assertTrue(response.value);
+        callers.shutdown();
+        assertTrue(callers.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, eduMFA.metrics().tenantRejections());
+    }
+
+    @Test
+    public void testLoadShedding() throws Exception
+    {
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 1000));
+        // The first request to the mock server is slower
+        eduMFA.validateCheck(username, otp);
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .threadPool(1, 1, 10)
+                       .loadShedding(1500)
+                       .logger(new EMLogImplementation())
+                       .build();
+        // Learn how long a request takes
+        assertNull(eduMFA.validateCheck(username, otp).error);
+
+        ExecutorService callers = Executors.newFixedThreadPool(3);
+        for (int i = 0; i < 3; i++)
+        {
+            callers.submit(() -> eduMFA.validateCheck(username, otp));
+            Thread.sleep(50);
+        }
+        // Two requests are queued, so this one would wait about 2000ms
+        long start = System.nanoTime();
+        EMResponse response = eduMFA.validateCheck(username, otp);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(EMError.CLIENT_OVERLOADED, response.error.code);
+        assertEquals(1, eduMFA.metrics().shedRequests());
+        callers.shutdown();
+        assertTrue(callers.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDropQueuedRequests() throws Exception
+    {
+        mockServer.when(HttpRequest.request().withMethod("POST").withPath("/validate/check"))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 1000));
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .threadPool(1, 1, 10)
+                       .logger(new EMLogImplementation())
+                       .build();
+
+        CompletableFuture<EMResponse> first = CompletableFuture.supplyAsync(() -> eduMFA.validateCheck(username, otp));
+        Thread.sleep(100);
+        // The only thread is busy, so the deadline passes while the request is queued
+        EMResponse response = eduMFA.withTimeout(200, () -> eduMFA.validateCheck(username, otp));
+        assertEquals(EMError.CLIENT_TIMEOUT, response.error.code);
+
+        assertNull(first.get(3000, TimeUnit.MILLISECONDS).error);
+        Thread.sleep(200);
+        assertEquals(1, eduMFA.metrics().droppedQueuedRequests());
+        mockServer.verify(HttpRequest.request().withPath("/validate/check"), VerificationTimes.once());
+    }
+
+    @After
+    public void tearDown()
+    {
+        mockServer.stop();
+    }
+}
@@ -88,6 +88,35 @@ public class TestValidateCheck
         assertTrue(response.value);
     }
 
+    @Test
+    public void testOTPSuccessWithoutRawResponse()
+    {
+        mockServer.when(HttpRequest.request()
+                                   .withMethod("POST")
+                                   .withPath("/validate/check")
+                                   .withBody("user=" + username + "&pass=" + otp))
+                  .respond(HttpResponse.response()
+                                       .withContentType(MediaType.APPLICATION_JSON)
+                                       .withBody(Utils.matchingOneToken())
+                                       .withDelay(TimeUnit.MILLISECONDS, 50));
+        // Without the log, the response is parsed from the connection without reading its text
+        eduMFA = EduMFA.newBuilder("https://127.0.0.1:1080", "test")
+                       .sslVerify(false)
+                       .disableRawResponses()
+                       .disableLog()
+                       .build();
+
+        EMResponse response = eduMFA.validateCheck(username, otp);
+
+        assertEquals(1, response.id);
+        assertEquals("matching 1 tokens", response.message);
+        assertEquals("PISP0001C673", response.serial);
+        assertEquals("rsa_sha256_pss:AAAAAAAAAAA", response.signature);
+        assertTrue(response.status);
+        assertTrue(response.value);
+        assertEquals("", response.rawMessage);
+    }
+
     @Test
     public void testOTPAddHeader()
     {
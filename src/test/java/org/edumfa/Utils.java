@@ -28,6 +28,11 @@ public class Utils
     private final static String authToken = "eyJ0eXAiOiJKV1QiLCJhbGciOiJIUzI1NiJ9.eyJ1c2VybmFtZSI6ImFkbWluIiwicmVhbG0iOiIiLCJub25jZSI6IjVjOTc4NWM5OWU";
 
     public static String postAuthSuccessResponse()
+    {
+        return postAuthSuccessResponse(authToken);
+    }
+
+    public static String postAuthSuccessResponse(String authToken)
     {
         return "{\n" + "    \"id\": 1,\n" +
                "    \"jsonrpc\": \"2.0\",\n" +